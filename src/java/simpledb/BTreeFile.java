@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.nio.channels.FileChannel;
 
@@ -25,6 +26,8 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final MappedFile mapped;
+	private final BTreeKeyLocks keyLocks;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -35,10 +38,60 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally
+	 * reading its pages from a memory mapping of the file.  Leaf pages are
+	 * then read in place from the mapping without a system call or copy.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param mmap - whether to read pages through a memory mapping
+	 * @see MappedFile
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean mmap) {
+		this(f, key, td, mmap, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally
+	 * locking keys rather than pages.  With key-range locking, transactions
+	 * inserting or deleting different keys can change the same leaf page
+	 * at once, while range scans still see no phantoms.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param mmap - whether to read pages through a memory mapping
+	 * @param keyLocking - whether to lock keys rather than pages
+	 * @see BTreeKeyLocks
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean mmap, boolean keyLocking) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.mapped = mmap ? new MappedFile(f) : null;
+		this.keyLocks = keyLocking ? new BTreeKeyLocks(this) : null;
+	}
+
+	/**
+	 * @return true if this file reads its pages through a memory mapping
+	 */
+	public boolean isMemoryMapped() {
+		return mapped != null;
+	}
+
+	/**
+	 * @return true if transactions lock keys of this file rather than pages
+	 */
+	public boolean usesKeyLocking() {
+		return keyLocks != null;
 	}
 
 	/**
@@ -79,39 +132,18 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(ByteBuffer.wrap(pageBuf), 0);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				readFully(ByteBuffer.wrap(pageBuf), pageOffset(id.pageNumber()));
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -128,14 +160,66 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
+		}
+	}
+
+	/**
+	 * @return the offset in the file of the page numbered pageNo, which is
+	 * not the root pointer page
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Fill dst from the file at offset, copying from the memory mapping if
+	 * this file has one.
+	 * @throws IllegalArgumentException if the file ends first
+	 */
+	private void readFully(ByteBuffer dst, long offset) throws IOException {
+		ByteBuffer slice = mapped == null ? null : mapped.slice(offset, dst.remaining());
+		if (slice != null) {
+			dst.duplicate().put(slice);
+			return;
+		}
+		int retval = FileHandleCache.read(f, dst, offset);
+		if (retval <= 0) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (retval < dst.remaining()) {
+			throw new IllegalArgumentException("Unable to read "
+					+ dst.remaining() + " bytes from BTreeFile");
+		}
+	}
+
+	/**
+	 * Read a page from the file on disk into frame.  Only leaf pages, which
+	 * hold the tuples, are read in place, from the memory mapping if this
+	 * file has one and otherwise from frame; the other kinds of page are
+	 * small or few and are read onto the heap as usual.
+	 * 
+	 * @param pid - the id of the page to read from disk
+	 * @param frame - the buffer to read into, or null
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid, ByteBuffer frame) {
+		BTreePageId id = (BTreePageId) pid;
+		if (id.pgcateg() != BTreePageId.LEAF || (frame == null && mapped == null))
+			return readPage(pid);
+		try {
+			if (mapped != null) {
+				// a mapped leaf needs no frame of its own
+				ByteBuffer slice = mapped.slice(pageOffset(id.pageNumber()), BufferPool.getPageSize());
+				if (slice != null)
+					return new BTreeLeafPage(id, slice, keyField);
 			}
+			if (frame == null)
+				return readPage(pid);
+			readFully(frame, pageOffset(id.pageNumber()));
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
+			return new BTreeLeafPage(id, frame, keyField);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
@@ -149,18 +233,33 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			FileHandleCache.write(f, ByteBuffer.wrap(data), 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			FileHandleCache.write(f, ByteBuffer.wrap(data), pageOffset(page.getId().pageNumber()));
 		}
 	}
 	
+	/**
+	 * Write a batch of pages to disk, coalescing runs of adjacent pages into
+	 * single writes.  The root pointer page is not part of the page number
+	 * sequence and is written on its own.
+	 * 
+	 * @param pages - the pages to write
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		ArrayList<Page> numbered = new ArrayList<Page>(pages.size());
+		for (Page p : pages) {
+			if (((BTreePageId) p.getId()).pgcateg() == BTreePageId.ROOT_PTR)
+				writePage(p);
+			else
+				numbered.add(p);
+		}
+		// page number 0 would sit just before page 1
+		PageRunWriter.write(f, numbered, pageOffset(0));
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -530,6 +629,8 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * Under key-range locking pages are not locked; BTreeKeyLocks protects them with latches.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -546,7 +647,9 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			BufferPool pool = Database.getBufferPool();
+			Page p = keyLocks != null && !pool.isSnapshot(tid) ? pool.getPageLatched(pid)
+					: pool.getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
@@ -566,6 +669,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		if(keyLocks != null) {
+			// the pages are dirtied while latched
+			keyLocks.insertTuple(tid, t);
+			return new ArrayList<Page>();
+		}
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
@@ -1098,6 +1206,10 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
+		if(keyLocks != null) {
+			keyLocks.deleteTuple(tid, t);
+			return new ArrayList<Page>();
+		}
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
@@ -1192,19 +1304,25 @@ public class BTreeFile implements DbFile {
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
 		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+			emptyPageNo = appendEmptyPage();
 		}
 
 		return emptyPageNo; 
 	}
+
+	/**
+	 * Append an empty page to the end of this BTreeFile.
+	 * 
+	 * @return the page number of the new page
+	 * @throws IOException
+	 */
+	int appendEmptyPage() throws IOException {
+		synchronized(this) {
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			FileHandleCache.append(f, ByteBuffer.wrap(emptyData));
+			return numPages();
+		}
+	}
 	
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
@@ -1229,10 +1347,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		FileHandleCache.write(f, ByteBuffer.wrap(BTreePage.createEmptyPageData()), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1338,6 +1453,8 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for the filtered tuples
 	 */
 	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if(keyLocks != null && !Database.getBufferPool().isSnapshot(tid))
+			return keyLocks.iterator(tid, ipred);
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
@@ -1350,6 +1467,8 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for all the tuples in this file
 	 */
 	public DbFileIterator iterator(TransactionId tid) {
+		if(keyLocks != null && !Database.getBufferPool().isSnapshot(tid))
+			return keyLocks.iterator(tid, null);
 		return new BTreeFileIterator(this, tid);
 	}
 
@@ -0,0 +1,820 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeKeyLocks runs the operations of a {@link BTreeFile} under key-range
+ * locking instead of page locking, so that transactions changing different
+ * keys of one leaf page do not wait for each other.
+ * <p>
+ * Transactions lock {@link IndexKey}s rather than pages, following
+ * next-key locking: a lock on a key also covers the gap below it.  A scan
+ * share locks every key it reads and the first key past its range (or the
+ * supremum), so no other transaction can insert a phantom into the range.
+ * An insert exclusively locks the new key until it completes, and the next
+ * key only for an instant, to check that no scan covers the gap; a delete
+ * exclusively locks both the key and the next key until it completes.
+ * <p>
+ * The pages themselves are protected by short-term latches instead, and
+ * inner pages are never locked.  Operations crab down the tree: they latch
+ * a child before releasing its parent, so a traversal holds at most two
+ * latches, and then move right along the leaves the same way.  An insert
+ * into a full leaf descends again latching exclusively, releasing the
+ * pages above each page with room for one more entry, as a split can reach
+ * no higher; it then splits pages bottom up along the path it kept.  Pages
+ * are latched top down, and left to right within a level, so latches
+ * cannot deadlock.  No thread ever waits for a lock while holding a latch;
+ * a lock that is not free straight away is waited for after dropping
+ * every latch, and the operation is then retried.  Leaves are not merged
+ * when deletes leave them underfull, so an entry never moves to a page to
+ * the left of where it was, and a reader that reaches a leaf just before a
+ * split finds the moved entries by moving right.
+ * <p>
+ * As leaf pages are shared, changes cannot be rolled back by discarding
+ * pages.  Each transaction's inserts and deletes are kept in an undo list,
+ * and are undone by deleting and reinserting tuples if the transaction
+ * aborts.  When a transaction completes, the pages it changed are written
+ * out and forced, which can write other transactions' uncommitted entries
+ * too.  Snapshot transactions read such trees page by page, as of the
+ * last time each page was written.
+ * <p>
+ * None of this is logged, so recovery cannot undo the uncommitted entries
+ * a crash leaves on disk.  Transactions that log their changes, which is
+ * every {@link Transaction}, may therefore read such trees but not change
+ * them.
+ *
+ * @see BufferPool#latch
+ * @Threadsafe
+ */
+class BTreeKeyLocks {
+
+    /** A tuple a transaction inserted or deleted. */
+    private static class Change {
+        final boolean inserted;
+        final Tuple tuple;
+
+        Change(boolean inserted, Tuple tuple) {
+            this.inserted = inserted;
+            this.tuple = tuple;
+        }
+    }
+
+    /** The changes of one transaction; guarded by its monitor. */
+    private static class TxnChanges {
+        final ArrayList<Change> undo = new ArrayList<Change>();
+        final Set<BTreePageId> pages = new HashSet<BTreePageId>();
+    }
+
+    private final BTreeFile file;
+
+    private final ConcurrentHashMap<TransactionId, TxnChanges> changes =
+        new ConcurrentHashMap<TransactionId, TxnChanges>();
+
+    BTreeKeyLocks(BTreeFile file) {
+        this.file = file;
+    }
+
+    private static BufferPool pool() {
+        return Database.getBufferPool();
+    }
+
+    private IndexKey keyOf(Field key) {
+        return new IndexKey(file.getId(), key);
+    }
+
+    private Field keyOf(Tuple t) {
+        return t.getField(file.keyField());
+    }
+
+    /** @return a copy of t's fields, not stored on any page */
+    private static Tuple copy(Tuple t) {
+        Tuple c = new Tuple(t.getTupleDesc());
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            c.setField(i, t.getField(i));
+        return c;
+    }
+
+    private static boolean sameFields(Tuple a, Tuple b) {
+        for (int i = 0; i < a.getTupleDesc().numFields(); i++) {
+            if (!a.getField(i).equals(b.getField(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Latch a page and return its resident copy.  The page is fetched
+     * after latching, as a copy fetched before might have been evicted.
+     */
+    private Page latchPage(BTreePageId pid, boolean exclusive) throws DbException {
+        pool().latch(pid, exclusive);
+        try {
+            return pool().getPageLatched(pid);
+        } catch (DbException e) {
+            pool().unlatch(pid, exclusive);
+            throw e;
+        }
+    }
+
+    private BTreeLeafPage latchLeaf(BTreePageId pid, boolean exclusive) throws DbException {
+        return (BTreeLeafPage) latchPage(pid, exclusive);
+    }
+
+    /** Latch the root pointer page, creating the file first if it is empty. */
+    private BTreeRootPtrPage latchRootPtr(TransactionId tid, boolean exclusive)
+        throws DbException, TransactionAbortedException {
+        try {
+            file.getRootPtrPage(tid, new HashMap<PageId, Page>());
+        } catch (IOException e) {
+            throw new DbException("could not read the root pointer of table " + file.getId());
+        }
+        return (BTreeRootPtrPage) latchPage(BTreeRootPtrPage.getId(file.getId()), exclusive);
+    }
+
+    /** @return the child of page to follow to the left-most leaf that may hold key, or any key if key is null */
+    private static BTreePageId childFor(BTreeInternalPage page, Field key) {
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            if (key == null || !e.getKey().compare(Op.LESS_THAN, key))
+                return e.getLeftChild();
+        }
+        return e.getRightChild();
+    }
+
+    /**
+     * Crab down to the left-most leaf that may hold key, latching inner
+     * pages shared and releasing each as soon as its child is latched.
+     *
+     * @param key the key to look for, or null for the first leaf
+     * @param exclusive whether to latch the leaf exclusively
+     * @return the latched leaf, or null if the tree has no root yet
+     */
+    private BTreeLeafPage descend(TransactionId tid, Field key, boolean exclusive)
+        throws DbException, TransactionAbortedException {
+        BTreePageId held = BTreeRootPtrPage.getId(file.getId());
+        BTreePageId pid = latchRootPtr(tid, false).getRootId();
+        try {
+            while (pid != null) {
+                boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+                Page page = latchPage(pid, leaf && exclusive);
+                pool().unlatch(held, false);
+                held = null;
+                if (leaf)
+                    return (BTreeLeafPage) page;
+                held = pid;
+                pid = childFor((BTreeInternalPage) page, key);
+            }
+            return null;
+        } finally {
+            if (held != null)
+                pool().unlatch(held, false);
+        }
+    }
+
+    /**
+     * Crab down to the leaf for key latching every page exclusively, and
+     * create the root if the tree has none.  A page with an empty slot
+     * stops any split below it, so the pages above it are released.
+     *
+     * @return the latched pages, from the highest one a split could change
+     *   (perhaps the root pointer page) down to the leaf
+     */
+    private ArrayList<Page> descendToSplit(TransactionId tid, Field key)
+        throws DbException, TransactionAbortedException {
+        ArrayList<Page> path = new ArrayList<Page>();
+        BTreeRootPtrPage rootPtr = latchRootPtr(tid, true);
+        path.add(rootPtr);
+        try {
+            BTreePageId pid = rootPtr.getRootId();
+            if (pid == null) {
+                // the empty file already holds an empty leaf
+                pid = new BTreePageId(file.getId(), file.numPages(), BTreePageId.LEAF);
+                rootPtr.setRootId(pid);
+                dirtied(tid, rootPtr);
+            }
+            while (true) {
+                BTreePage page = (BTreePage) latchPage(pid, true);
+                if (page.getNumEmptySlots() > 0)
+                    unlatchAll(path);
+                path.add(page);
+                if (pid.pgcateg() == BTreePageId.LEAF)
+                    return path;
+                pid = childFor((BTreeInternalPage) page, key);
+            }
+        } catch (DbException e) {
+            unlatchAll(path);
+            throw e;
+        }
+    }
+
+    private static void unlatchAll(List<Page> pages) {
+        for (Page page : pages)
+            pool().unlatch(page.getId(), true);
+        pages.clear();
+    }
+
+    /**
+     * @return the smallest key above key, looking right from leaf, which
+     *   the caller has latched; the supremum if there is none.  Leaves to
+     *   the right are latched shared one at a time.
+     */
+    private IndexKey nextKey(BTreeLeafPage leaf, Field key) throws DbException {
+        BTreeLeafPage page = leaf;
+        while (true) {
+            Field next = null;
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext() && next == null) {
+                Field k = keyOf(it.next());
+                if (k.compare(Op.GREATER_THAN, key))
+                    next = k;
+            }
+            BTreePageId right = page.getRightSiblingId();
+            if (page != leaf)
+                pool().unlatch(page.getId(), false);
+            if (next != null || right == null)
+                return keyOf(next);
+            page = latchLeaf(right, false);
+        }
+    }
+
+    /**
+     * Take the locks an insert or delete of key needs, if they are free.
+     * An insert locks the next key only for an instant, unless tid already
+     * held it; a delete keeps it.
+     *
+     * @return null if tid now holds the locks, or the key to wait for
+     */
+    private IndexKey lockForChange(TransactionId tid, BTreeLeafPage leaf, Field key,
+                                   boolean insert) throws DbException {
+        IndexKey k = keyOf(key);
+        if (!pool().tryLockKey(tid, k, Permissions.READ_WRITE))
+            return k;
+        IndexKey next = nextKey(leaf, key);
+        if (pool().holdsKeyLock(tid, next, Permissions.READ_WRITE))
+            return null;
+        boolean held = pool().holdsKeyLock(tid, next, Permissions.READ_ONLY);
+        if (!pool().tryLockKey(tid, next, Permissions.READ_WRITE))
+            return next;
+        if (insert && !held)
+            pool().releaseKey(tid, next);
+        return null;
+    }
+
+    private TxnChanges changesOf(TransactionId tid) {
+        TxnChanges c = changes.get(tid);
+        if (c == null) {
+            changes.putIfAbsent(tid, new TxnChanges());
+            c = changes.get(tid);
+            pool().enlist(tid, this);
+        }
+        return c;
+    }
+
+    /** Mark a page tid changed dirty, and remember to write it out when tid completes. */
+    private void dirtied(TransactionId tid, Page page) throws DbException {
+        pool().dirtyLatched(tid, page);
+        TxnChanges c = changesOf(tid);
+        synchronized (c) {
+            c.pages.add((BTreePageId) page.getId());
+        }
+    }
+
+    private void logChange(TransactionId tid, boolean inserted, Tuple t) {
+        TxnChanges c = changesOf(tid);
+        synchronized (c) {
+            c.undo.add(new Change(inserted, copy(t)));
+        }
+    }
+
+    private void checkWritable(TransactionId tid) throws DbException {
+        if (pool().isSnapshot(tid))
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        if (Database.getLogFile().isRunning(tid))
+            throw new DbException("table " + file.getId()
+                                  + " uses key-range locking, which the log cannot recover");
+    }
+
+    /**
+     * Insert t into the tree on behalf of tid.
+     *
+     * @see BTreeFile#insertTuple
+     */
+    void insertTuple(TransactionId tid, Tuple t)
+        throws DbException, TransactionAbortedException {
+        checkWritable(tid);
+        insert(tid, t, true);
+    }
+
+    /**
+     * @param logged whether to lock the key and log the insert; false when
+     *   undoing a delete, whose locks tid already holds
+     */
+    private void insert(TransactionId tid, Tuple t, boolean logged)
+        throws DbException, TransactionAbortedException {
+        Field key = keyOf(t);
+        while (true) {
+            IndexKey wait = null;
+            boolean split = false;
+            BTreeLeafPage leaf = descend(tid, key, true);
+            if (leaf == null) {
+                split = true;
+            } else {
+                try {
+                    if (leaf.getNumEmptySlots() == 0)
+                        split = true;
+                    else if (!logged || (wait = lockForChange(tid, leaf, key, true)) == null) {
+                        leaf.insertTuple(t);
+                        dirtied(tid, leaf);
+                    }
+                } finally {
+                    pool().unlatch(leaf.getId(), true);
+                }
+            }
+            if (split)
+                wait = insertSplitting(tid, t, logged);
+            if (wait == null) {
+                if (logged)
+                    logChange(tid, true, t);
+                return;
+            }
+            pool().lockKey(tid, wait, Permissions.READ_WRITE);
+        }
+    }
+
+    /**
+     * Insert t into a leaf that was full, latching the path a split may
+     * change, and splitting pages up it as needed.
+     *
+     * @return null if t was inserted, or the key to wait for
+     */
+    private IndexKey insertSplitting(TransactionId tid, Tuple t, boolean logged)
+        throws DbException, TransactionAbortedException {
+        Field key = keyOf(t);
+        ArrayList<Page> path = descendToSplit(tid, key);
+        try {
+            BTreeLeafPage leaf = (BTreeLeafPage) path.get(path.size() - 1);
+            if (logged) {
+                IndexKey wait = lockForChange(tid, leaf, key, true);
+                if (wait != null)
+                    return wait;
+            }
+            if (leaf.getNumEmptySlots() > 0) {
+                leaf.insertTuple(t);
+                dirtied(tid, leaf);
+            } else {
+                path.remove(path.size() - 1);
+                BTreeEntry entry = splitLeaf(tid, leaf, t);
+                insertEntry(tid, path, entry);
+            }
+            return null;
+        } catch (IOException e) {
+            throw new DbException("could not split a page of table " + file.getId());
+        } finally {
+            unlatchAll(path);
+        }
+    }
+
+    /**
+     * Append an empty page to the file and latch it exclusively.  Pages
+     * are never freed in this mode, so there is no free page to reuse.
+     */
+    private BTreePage newPage(int pgcateg) throws DbException, IOException {
+        BTreePageId pid = new BTreePageId(file.getId(), file.appendEmptyPage(), pgcateg);
+        pool().discardPage(pid);
+        return (BTreePage) latchPage(pid, true);
+    }
+
+    /**
+     * Move the upper half of the tuples of a full leaf, which the caller
+     * has latched exclusively, to a new leaf on its right, and insert t
+     * into whichever of the two it belongs in.  Both leaves are released.
+     *
+     * @return the entry for the new leaf to insert into the parent
+     */
+    private BTreeEntry splitLeaf(TransactionId tid, BTreeLeafPage page, Tuple t)
+        throws DbException, IOException {
+        BTreeLeafPage right = null;
+        BTreeLeafPage newLeaf = null;
+        try {
+            newLeaf = (BTreeLeafPage) newPage(BTreePageId.LEAF);
+            Stack<Tuple> moved = new Stack<Tuple>();
+            Iterator<Tuple> it = page.reverseIterator();
+            int total = page.getNumTuples();
+            while (it.hasNext() && moved.size() < total / 2)
+                moved.push(it.next());
+            while (!moved.isEmpty()) {
+                Tuple m = moved.pop();
+                page.deleteTuple(m);
+                newLeaf.insertTuple(m);
+            }
+
+            BTreePageId rightId = page.getRightSiblingId();
+            if (rightId != null) {
+                right = latchLeaf(rightId, true);
+                right.setLeftSiblingId(newLeaf.getId());
+                dirtied(tid, right);
+            }
+            page.setRightSiblingId(newLeaf.getId());
+            newLeaf.setLeftSiblingId(page.getId());
+            newLeaf.setRightSiblingId(rightId);
+            newLeaf.setParentId(page.getParentId());
+
+            Field separator = keyOf(newLeaf.iterator().next());
+            if (keyOf(t).compare(Op.LESS_THAN, separator))
+                page.insertTuple(t);
+            else
+                newLeaf.insertTuple(t);
+            dirtied(tid, page);
+            dirtied(tid, newLeaf);
+            return new BTreeEntry(separator, page.getId(), newLeaf.getId());
+        } finally {
+            if (right != null)
+                pool().unlatch(right.getId(), true);
+            if (newLeaf != null)
+                pool().unlatch(newLeaf.getId(), true);
+            pool().unlatch(page.getId(), true);
+        }
+    }
+
+    /**
+     * Insert entry into the last page of path, splitting it, and then the
+     * pages above it, while they are full.  If the root splits, a new root
+     * is made.  Each page is released once it is done with.
+     *
+     * @param path the latched pages from the highest one that may change
+     *   down to the parent of entry's children
+     */
+    private void insertEntry(TransactionId tid, ArrayList<Page> path, BTreeEntry entry)
+        throws DbException, IOException {
+        while (true) {
+            Page top = path.remove(path.size() - 1);
+            try {
+                if (top instanceof BTreeRootPtrPage) {
+                    BTreeInternalPage root = (BTreeInternalPage) newPage(BTreePageId.INTERNAL);
+                    try {
+                        root.insertEntry(entry);
+                        ((BTreeRootPtrPage) top).setRootId(root.getId());
+                        dirtied(tid, root);
+                        dirtied(tid, top);
+                    } finally {
+                        pool().unlatch(root.getId(), true);
+                    }
+                    setParent(tid, entry.getLeftChild(), root.getId());
+                    setParent(tid, entry.getRightChild(), root.getId());
+                    return;
+                }
+                BTreeInternalPage page = (BTreeInternalPage) top;
+                if (page.getNumEmptySlots() > 0) {
+                    page.insertEntry(entry);
+                    dirtied(tid, page);
+                    return;
+                }
+                entry = splitInternal(tid, page, entry);
+            } finally {
+                pool().unlatch(top.getId(), true);
+            }
+        }
+    }
+
+    /**
+     * Move the upper half of the entries of a full internal page, which
+     * the caller has latched exclusively, to a new page on its right,
+     * pushing the middle one up, and insert entry into whichever of the
+     * two it belongs in.
+     *
+     * @return the entry for the new page to insert into the parent
+     */
+    private BTreeEntry splitInternal(TransactionId tid, BTreeInternalPage page, BTreeEntry entry)
+        throws DbException, IOException {
+        BTreeInternalPage newPage = (BTreeInternalPage) newPage(BTreePageId.INTERNAL);
+        BTreeEntry up;
+        try {
+            Stack<BTreeEntry> moved = new Stack<BTreeEntry>();
+            Iterator<BTreeEntry> it = page.reverseIterator();
+            int total = page.getNumEntries();
+            while (it.hasNext() && moved.size() < total - total / 2)
+                moved.push(it.next());
+            up = moved.pop();
+            page.deleteKeyAndRightChild(up);
+            while (!moved.isEmpty()) {
+                BTreeEntry m = moved.pop();
+                page.deleteKeyAndRightChild(m);
+                newPage.insertEntry(m);
+            }
+            newPage.setParentId(page.getParentId());
+            if (entry.getKey().compare(Op.LESS_THAN_OR_EQ, up.getKey()))
+                page.insertEntry(entry);
+            else
+                newPage.insertEntry(entry);
+            dirtied(tid, page);
+            dirtied(tid, newPage);
+        } finally {
+            pool().unlatch(newPage.getId(), true);
+        }
+        // the caller still holds page, and nothing else can reach newPage
+        // until it is in the parent, so its children can be latched now
+        Iterator<BTreeEntry> it = newPage.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            setParent(tid, e.getLeftChild(), newPage.getId());
+        }
+        setParent(tid, e.getRightChild(), newPage.getId());
+        return new BTreeEntry(up.getKey(), page.getId(), newPage.getId());
+    }
+
+    /** Point child's parent pointer at parent, latching child exclusively. */
+    private void setParent(TransactionId tid, BTreePageId child, BTreePageId parent)
+        throws DbException {
+        BTreePage page = (BTreePage) latchPage(child, true);
+        try {
+            if (!page.getParentId().equals(parent)) {
+                page.setParentId(parent);
+                dirtied(tid, page);
+            }
+        } finally {
+            pool().unlatch(child, true);
+        }
+    }
+
+    /**
+     * Delete t from the tree on behalf of tid.  t is looked up by its key
+     * and fields, as concurrent splits may have moved it since it was read.
+     *
+     * @see BTreeFile#deleteTuple
+     */
+    void deleteTuple(TransactionId tid, Tuple t)
+        throws DbException, TransactionAbortedException {
+        checkWritable(tid);
+        delete(tid, t, true);
+    }
+
+    /**
+     * @param logged whether to lock the key and log the delete; false when
+     *   undoing an insert, whose locks tid already holds
+     */
+    private void delete(TransactionId tid, Tuple t, boolean logged)
+        throws DbException, TransactionAbortedException {
+        Field key = keyOf(t);
+        while (true) {
+            IndexKey wait = null;
+            Tuple found = null;
+            BTreeLeafPage leaf = descend(tid, key, true);
+            while (leaf != null && found == null) {
+                BTreePageId right = null;
+                try {
+                    boolean past = false;
+                    Iterator<Tuple> it = leaf.iterator();
+                    while (it.hasNext() && found == null && !past) {
+                        Tuple candidate = it.next();
+                        if (keyOf(candidate).compare(Op.GREATER_THAN, key))
+                            past = true;
+                        else if (sameFields(candidate, t))
+                            found = candidate;
+                    }
+                    if (found != null) {
+                        if (!logged || (wait = lockForChange(tid, leaf, key, false)) == null) {
+                            leaf.deleteTuple(found);
+                            dirtied(tid, leaf);
+                        }
+                    }
+                    right = past ? null : leaf.getRightSiblingId();
+                } finally {
+                    pool().unlatch(leaf.getId(), true);
+                }
+                leaf = found != null || right == null ? null : latchLeaf(right, true);
+            }
+            if (found == null)
+                throw new DbException("tuple " + t + " is not in table " + file.getId());
+            if (wait == null) {
+                if (logged)
+                    logChange(tid, false, t);
+                return;
+            }
+            pool().lockKey(tid, wait, Permissions.READ_WRITE);
+        }
+    }
+
+    /**
+     * Write out every page tid changed that is still dirty, and force the
+     * file, as no log record makes the changes durable.  Each page is
+     * latched shared while it is written, so it is written whole, and is
+     * marked clean before anyone can change it again.
+     */
+    void flush(TransactionId tid) throws IOException {
+        TxnChanges c = changes.get(tid);
+        if (c == null)
+            return;
+        List<BTreePageId> pages;
+        synchronized (c) {
+            pages = new ArrayList<BTreePageId>(c.pages);
+        }
+        for (BTreePageId pid : pages) {
+            if (!pool().isResident(pid))
+                continue;
+            pool().latch(pid, false);
+            try {
+                Page page = pool().getPageLatched(pid);
+                if (page.isDirty() != null) {
+                    file.writePage(page);
+                    page.markDirty(false, null);
+                    page.setBeforeImage();
+                }
+            } catch (DbException e) {
+                throw new IOException(e.getMessage());
+            } finally {
+                pool().unlatch(pid, false);
+            }
+        }
+        FileHandleCache.force(file.getFile());
+    }
+
+    /**
+     * Finish tid: if it aborted, undo its inserts and deletes in reverse
+     * order; then write out the pages it changed.  tid still holds its key
+     * locks, so the undo needs no locks of its own.
+     */
+    void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+        TxnChanges c = changes.get(tid);
+        if (c == null)
+            return;
+        if (!commit) {
+            List<Change> undo;
+            synchronized (c) {
+                undo = new ArrayList<Change>(c.undo);
+            }
+            Collections.reverse(undo);
+            try {
+                for (Change change : undo) {
+                    if (change.inserted)
+                        delete(tid, change.tuple, false);
+                    else
+                        insert(tid, copy(change.tuple), false);
+                }
+            } catch (DbException e) {
+                throw new IOException("could not roll back transaction " + tid.getId()
+                        + ": " + e.getMessage());
+            } catch (TransactionAbortedException e) {
+                throw new IOException("could not roll back transaction " + tid.getId());
+            }
+        }
+        flush(tid);
+        changes.remove(tid);
+    }
+
+    /**
+     * @return an iterator over the tuples matching ipred, in key order,
+     *   share locking every key it reads
+     * @param ipred the predicate to filter on, or null for every tuple
+     */
+    DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return new Scan(tid, ipred);
+    }
+
+    /**
+     * Scan of a key-range locked tree.  The scan keeps its place by the
+     * last key it returned, and how many tuples with that key it returned,
+     * rather than by slot: tid's lock on the key means no tuple with that
+     * key can come or go, while splits may move tuples between leaves.
+     * It remembers the leaf where the run of that key began, as tuples
+     * only ever move to the right of it.
+     */
+    private class Scan extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+
+        private BTreePageId leafId;
+        private Field lastKey;
+        private int returned;
+        private boolean done;
+
+        Scan(TransactionId tid, IndexPredicate ipred) {
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() {
+            leafId = null;
+            lastKey = null;
+            returned = 0;
+            done = false;
+        }
+
+        /** @return true if every key before key can be skipped without locking */
+        private boolean beforeRange(Field key) {
+            Op op = ipred.getOp();
+            return (op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ)
+                && key.compare(Op.LESS_THAN_OR_EQ, ipred.getField());
+        }
+
+        /** @return true if no key at or after key can match */
+        private boolean pastRange(Field key) {
+            Op op = ipred.getOp();
+            return op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (!done) {
+                IndexKey wait = null;
+                BTreeLeafPage leaf;
+                if (leafId == null) {
+                    boolean seek = ipred != null && (ipred.getOp() == Op.EQUALS
+                        || ipred.getOp() == Op.GREATER_THAN
+                        || ipred.getOp() == Op.GREATER_THAN_OR_EQ);
+                    leaf = descend(tid, seek ? ipred.getField() : null, false);
+                    if (leaf != null)
+                        leafId = leaf.getId();
+                } else {
+                    leaf = latchLeaf(leafId, false);
+                }
+                // find the first tuple after the last one returned,
+                // skipping tuples before the range
+                Tuple next = null;
+                BTreePageId nextLeaf = null;
+                int seen = 0;
+                while (leaf != null && next == null) {
+                    BTreePageId pid = leaf.getId();
+                    BTreePageId right = null;
+                    try {
+                        Iterator<Tuple> it = leaf.iterator();
+                        while (it.hasNext() && next == null) {
+                            Tuple t = it.next();
+                            Field key = keyOf(t);
+                            if (lastKey != null && key.compare(Op.LESS_THAN, lastKey))
+                                continue;
+                            if (lastKey != null && key.equals(lastKey) && seen++ < returned)
+                                continue;
+                            if (ipred != null && !key.compare(ipred.getOp(), ipred.getField())) {
+                                if (beforeRange(key))
+                                    continue;
+                                if (!pastRange(key)) {
+                                    // keep the skipped key locked too, so
+                                    // it cannot change to match
+                                    if (!pool().tryLockKey(tid, keyOf(key), Permissions.READ_ONLY)) {
+                                        wait = keyOf(key);
+                                        break;
+                                    }
+                                    lastKey = key;
+                                    returned = 1;
+                                    seen = 1;
+                                    leafId = pid;
+                                    continue;
+                                }
+                            }
+                            next = t;
+                            nextLeaf = pid;
+                        }
+                        right = wait != null || next != null ? null : leaf.getRightSiblingId();
+                    } finally {
+                        pool().unlatch(pid, false);
+                    }
+                    leaf = right == null ? null : latchLeaf(right, false);
+                }
+                if (wait == null) {
+                    Field key = next == null ? null : keyOf(next);
+                    IndexKey k = keyOf(key);
+                    boolean matches = next != null && (ipred == null
+                        || key.compare(ipred.getOp(), ipred.getField()));
+                    if (!pool().tryLockKey(tid, k, Permissions.READ_ONLY)) {
+                        wait = k;
+                    } else if (!matches) {
+                        // the key after the range, or the supremum,
+                        // keeps phantoms out of the gap below it
+                        done = true;
+                    } else {
+                        if (lastKey != null && key.equals(lastKey)) {
+                            returned++;
+                        } else {
+                            lastKey = key;
+                            returned = 1;
+                            leafId = nextLeaf;
+                        }
+                        return next;
+                    }
+                }
+                if (wait != null)
+                    pool().lockKey(tid, wait, Permissions.READ_ONLY);
+            }
+            return null;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            leafId = null;
+            done = true;
+        }
+    }
+}
@@ -2,19 +2,26 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Like HeapPage, tuples that have not been moved or inserted since the page
+ * was read are decoded from the page's buffer on demand.
  *
  * @see BTreeFile
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlabPage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
+
+	// the bytes this page was read from; never written.  Guarded by this.
+	private ByteBuffer data;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -62,48 +69,37 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
+	/**
+	 * Create a BTreeLeafPage over a buffer holding one page in the format
+	 * described above, positioned at 0.  Tuples are decoded from data as
+	 * they are read, so data must not change until {@link #releaseSlab} is
+	 * called.  A read-only buffer is taken to be a mapping of the file,
+	 * which changes when the page is written; the page keeps its before
+	 * image in a copy of its own from the first time it is dirtied.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 */
+	public BTreeLeafPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.leftSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.rightSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = data.getInt(0);
+		this.leftSibling = data.getInt(INDEX_SIZE);
+		this.rightSibling = data.getInt(2 * INDEX_SIZE);
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+			header[i] = data.get(3 * INDEX_SIZE + i);
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
-		dis.close();
-
-		setBeforeImage();
+		this.data = data;
 	}
 
 	/** 
@@ -137,6 +133,8 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
+			if (oldDataRef == null)
+				oldDataRef = readData();
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -146,6 +144,25 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
+	/**
+	 * Marks this page as dirty/not dirty, first copying its before image
+	 * out of data if data is a mapping of the file
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty) {
+			synchronized(oldDataLock)
+			{
+				if (oldData == null && readsMapping())
+					oldData = readData();
+			}
+		}
+		super.markDirty(dirty, tid);
+	}
+
+	private synchronized boolean readsMapping() {
+		return data.isReadOnly();
+	}
+
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
@@ -154,39 +171,81 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	/**
-	 * Read tuples from the source file.
+	 * @return the offset of slot i in the page data
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
-			return null;
-		}
+	private int slotOffset(int i) {
+		return 3 * INDEX_SIZE + header.length + i * td.getSize();
+	}
+
+	/**
+	 * @return the tuple in used slot i, decoding it from the page data if it
+	 * has not been replaced since the page was read
+	 */
+	private Tuple tupleAt(int i) {
+		Tuple t = tuples[i];
+		return t != null ? t : readTuple(i);
+	}
+
+	/**
+	 * @return the key of the tuple in used slot i, without decoding the
+	 * rest of the tuple
+	 */
+	private synchronized Field keyAt(int i) {
+		if (tuples[i] != null)
+			return tuples[i].getField(keyField);
+		int offset = slotOffset(i);
+		for (int j=0; j<keyField; j++)
+			offset += td.getFieldType(j).getLen();
+		return td.getFieldType(keyField).parse(data, offset);
+	}
 
-		// read fields in the tuple
+	/**
+	 * Decode the tuple in slot i from the page data.
+	 */
+	private synchronized Tuple readTuple(int slotId) {
 		Tuple t = new Tuple(td);
-		RecordId rid = new RecordId(pid, slotId);
-		t.setRecordId(rid);
-		try {
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+		t.setRecordId(new RecordId(pid, slotId));
+		int offset = slotOffset(slotId);
+		for (int j=0; j<td.numFields(); j++) {
+			Type type = td.getFieldType(j);
+			t.setField(j, type.parse(data, offset));
+			offset += type.getLen();
 		}
-
 		return t;
 	}
 
+	/**
+	 * @return a heap copy of the bytes this page was read from
+	 */
+	private synchronized byte[] readData() {
+		byte[] copy = new byte[BufferPool.getPageSize()];
+		ByteBuffer view = data.duplicate();
+		view.position(0);
+		view.get(copy, 0, Math.min(copy.length, view.remaining()));
+		return copy;
+	}
+
+	/**
+	 * @return a copy of the bytes of slot i in the page data
+	 */
+	private synchronized byte[] slotBytes(int i) {
+		byte[] bytes = new byte[td.getSize()];
+		ByteBuffer view = data.duplicate();
+		view.position(slotOffset(i));
+		view.get(bytes);
+		return bytes;
+	}
+
+	// see SlabPage.java for javadocs
+	public synchronized boolean readsFrom(ByteBuffer buf) {
+		return data == buf;
+	}
+
+	// see SlabPage.java for javadocs
+	public synchronized void releaseSlab() {
+		data = ByteBuffer.wrap(readData());
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -249,6 +308,16 @@ public class BTreeLeafPage extends BTreePage {
 				continue;
 			}
 
+			// slot unchanged since the page was read: copy its bytes
+			if (tuples[i] == null) {
+				try {
+					dos.write(slotBytes(i));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+
 			// non-empty slot
 			for (int j=0; j<td.numFields(); j++) {
 				Field f = tuples[i].getField(j);
@@ -295,6 +364,7 @@ public class BTreeLeafPage extends BTreePage {
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null tuple.");
 		markSlotUsed(rid.tupleno(), false);
+		tuples[rid.tupleno()] = null;
 		t.setRecordId(null);
 	}
 
@@ -327,7 +397,7 @@ public class BTreeLeafPage extends BTreePage {
 		Field key = t.getField(keyField);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(keyAt(i).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
@@ -366,8 +436,9 @@ public class BTreeLeafPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
-			tuples[to] = tuples[from];
+			tuples[to] = tupleAt(from);
 			tuples[to].setRecordId(rid);
+			tuples[from] = null;
 			markSlotUsed(from, false);
 		}
 	}
@@ -509,7 +580,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
+			return tupleAt(i);
 
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new NoSuchElementException();
@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * BackgroundWriter is a daemon thread that periodically trickles dirty pages
+ * of the current BufferPool to disk with {@link BufferPool#writeBehind}, so
+ * that they become clean, evictable frames without anyone waiting on the
+ * write.  Only pages that no running transaction can still change are
+ * written, that is pages whose dirtying transaction has finished; under
+ * NO FORCE those hold committed changes that so far are only in the log.
+ * <p>
+ * The pause between rounds, in milliseconds, is set by the
+ * simpledb.WriterDelayMs system property; 0 disables the writer.
+ */
+class BackgroundWriter implements Runnable {
+
+    /** Name of the system property that sets the pause between rounds. */
+    public static final String DELAY_PROPERTY = "simpledb.WriterDelayMs";
+
+    private static final long DELAY_MS = Long.getLong(DELAY_PROPERTY, 1000);
+
+    private static Thread thread;
+
+    private BackgroundWriter() {
+    }
+
+    /** Start the writer, unless it is disabled or already running. */
+    static synchronized void start() {
+        if (thread != null || DELAY_MS <= 0)
+            return;
+        thread = new Thread(new BackgroundWriter(), "simpledb-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(DELAY_MS);
+                int written = Database.getBufferPool().writeBehind();
+                if (written > 0)
+                    Debug.log("BackgroundWriter: wrote %d pages", written);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // e.g. a table dropped from the catalog; try again next round
+                Debug.log("BackgroundWriter: %s", e);
+            }
+        }
+    }
+}
@@ -2,8 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntFunction;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,13 +14,97 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages are hash partitioned by PageId over a number of shards, each with
+ * its own latch, frames and eviction policy, so page hits on different
+ * shards never contend.
+ * <p>
+ * With the simpledb.BufferPoolOffHeap system property set, frames are slabs
+ * of one direct ByteBuffer and heap and B+ tree leaf pages are decoded from
+ * their slab on demand, keeping the cached data off the Java heap.
+ * <p>
+ * Buffer management is STEAL / NO FORCE, driven by the write-ahead log.
+ * A transaction that logged a BEGIN record commits by logging UPDATE
+ * records for the pages it dirtied and forcing the log with its COMMIT
+ * record; the pages themselves stay dirty.  When a shard has no clean page
+ * to evict, a dirty one is stolen: written out, uncommitted or not, after
+ * its UPDATE record is on disk, so that recovery or an abort can undo it.
+ * Transactions the log knows nothing of are still forced at commit.
+ * <p>
+ * Dirty pages are written in batches sorted by table and page number, so
+ * that adjacent pages go to disk in one gathering write.  Every batch is
+ * preceded by UPDATE records for those of its pages whose contents are not
+ * logged yet, and the log is flushed up to the newest of those records
+ * before any page is written.  A
+ * {@link BackgroundWriter} writes out dirty pages that no running
+ * transaction can still change.
+ * <p>
+ * Read-only transactions can run against a snapshot instead of locking
+ * (see {@link #beginSnapshot}); they are handed copies of the committed
+ * page versions kept by a {@link VersionStore}.
+ * <p>
+ * B+ trees that use key-range locking share their pages between
+ * transactions: they lock keys rather than pages, and protect the pages
+ * themselves with the short-term latches of {@link #latch}.  Such a tree
+ * writes out and rolls back the changes of a transaction itself (see
+ * {@link BTreeKeyLocks}), without the log, so logged transactions cannot
+ * change it.
  * 
+ * @see BufferPoolShard
+ * @see PageArena
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
     /** Bytes per page, including header. */
     private static final int PAGE_SIZE = 4096;
     private final LockManager lockManager;
+    private final VersionStore versions = new VersionStore();
+
+    /** Snapshot time of each running read-only transaction. */
+    private final ConcurrentMap<TransactionId, Long> snapshots =
+        new ConcurrentHashMap<TransactionId, Long>();
+
+    /**
+     * LSN of the UPDATE record holding the current contents of each dirty
+     * page, dropped when the page changes again or is written; a page with
+     * an entry can be written without logging it.
+     */
+    private final ConcurrentMap<PageId, Long> pageLSN =
+        new ConcurrentHashMap<PageId, Long>();
+
+    /**
+     * LSN of the first record logged for each dirty page since it was
+     * last written, from which recovery has to redo it.  Unlike pageLSN an
+     * entry stays when the page changes again; checkpoints record these
+     * as their dirty page table.
+     */
+    private final ConcurrentMap<PageId, Long> recLSN =
+        new ConcurrentHashMap<PageId, Long>();
+
+    /**
+     * Copy of the image the log last brought each page to, for pages
+     * written out by transactions that are still running.  The disk and
+     * the log hold that image rather than the committed version, so the
+     * next record of the page is diffed against it.  Dropped when the
+     * transaction completes.
+     */
+    private final ConcurrentMap<PageId, Page> loggedImage =
+        new ConcurrentHashMap<PageId, Page>();
+
+    /**
+     * Pages each running transaction has got for writing or marked dirty,
+     * so the pages it dirtied are among them; some may have been written
+     * out or evicted since.  Dropped when it completes.
+     */
+    private final ConcurrentMap<TransactionId, Set<PageId>> writablePages =
+        new ConcurrentHashMap<TransactionId, Set<PageId>>();
+
+    /** Latches on the pages of key-range locked B+ trees. */
+    private final PageLatches latches = new PageLatches();
+
+    /** Key-range locked B+ trees each running transaction has changed. */
+    private final ConcurrentMap<TransactionId, Set<BTreeKeyLocks>> keyLocked =
+        new ConcurrentHashMap<TransactionId, Set<BTreeKeyLocks>>();
     private static int pageSize = PAGE_SIZE;
     
     /** Default number of pages passed to the constructor. This is used by
@@ -27,26 +112,109 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
-    private static int numPages;
-    
-    private ConcurrentHashMap<PageId, Page> pages = new ConcurrentHashMap<>();
+    /** Name of the system property that overrides the default shard count. */
+    public static final String SHARDS_PROPERTY = "simpledb.BufferPoolShards";
 
-    private ConcurrentHashMap<PageId, Integer> lruOfPage = new ConcurrentHashMap<>();
-    
-    private final Map<TransactionId,Set<PageId>> transactionToModifiedPagesMap;
+    /** Name of the system property that puts page frames off-heap. */
+    public static final String OFF_HEAP_PROPERTY = "simpledb.BufferPoolOffHeap";
+
+    /** Pools are only split once every shard can get at least this many pages. */
+    private static final int MIN_PAGES_PER_SHARD = 64;
+
+    private final int numPages;
 
-    private int recentValue = 0;
+    /** Hash partitions of the pool, each with its own latch. */
+    private final BufferPoolShard[] shards;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages.  The eviction
+     * policy is named by the simpledb.EvictionPolicy system property and
+     * defaults to CLOCK; the shard count comes from the
+     * simpledb.BufferPoolShards property, or from {@link #defaultShards}.
      *
      * @param numPages maximum number of pages in this buffer pool.
+     * @see EvictionPolicy#forName
      */
     public BufferPool(int numPages) {
-        // some code goes here
-    	BufferPool.numPages = numPages;
-    	lockManager = LockManager.getSingletonInstance();
-    	transactionToModifiedPagesMap = new HashMap<TransactionId,Set<PageId>>();
+        this(numPages, Integer.getInteger(SHARDS_PROPERTY, defaultShards(numPages)));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numShards independently latched partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of partitions; clamped to [1, numPages]
+     */
+    public BufferPool(int numPages, int numShards) {
+        this(numPages, numShards, frames -> EvictionPolicy.forName(
+                System.getProperty(EvictionPolicy.POLICY_PROPERTY), frames));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numShards partitions that each replace pages with a policy built by
+     * policyFactory.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of partitions; clamped to [1, numPages]
+     * @param policyFactory creates a policy for a given number of frames
+     */
+    public BufferPool(int numPages, int numShards,
+                      IntFunction<EvictionPolicy> policyFactory) {
+        this(numPages, numShards, policyFactory, Boolean.getBoolean(OFF_HEAP_PROPERTY));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numShards partitions that each replace pages with a policy built by
+     * policyFactory.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of partitions; clamped to [1, numPages]
+     * @param policyFactory creates a policy for a given number of frames
+     * @param offHeap whether to read pages into an off-heap arena of
+     *   numPages * getPageSize() bytes
+     */
+    public BufferPool(int numPages, int numShards,
+                      IntFunction<EvictionPolicy> policyFactory, boolean offHeap) {
+        this.numPages = numPages;
+        lockManager = LockManager.getSingletonInstance();
+        PageArena arena = offHeap ? new PageArena(numPages, pageSize) : null;
+        numShards = Math.max(1, Math.min(numShards, numPages));
+        shards = new BufferPoolShard[numShards];
+        int slabBase = 0;
+        for (int i = 0; i < numShards; i++) {
+            // spread the remainder over the first few shards
+            int frames = numPages / numShards + (i < numPages % numShards ? 1 : 0);
+            shards[i] = new BufferPoolShard(frames, policyFactory, arena, slabBase);
+            slabBase += frames;
+        }
+    }
+
+    /**
+     * One shard per core, as long as each shard still gets
+     * MIN_PAGES_PER_SHARD pages; small pools are not split at all.
+     */
+    static int defaultShards(int numPages) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores, numPages / MIN_PAGES_PER_SHARD));
+    }
+
+    /** @return the maximum number of pages this pool caches */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the number of partitions of this pool */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    private BufferPoolShard shardOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16); // HeapPageId hashes are small sums; mix the bits
+        return shards[(h & 0x7fffffff) % shards.length];
     }
     
     public static int getPageSize() {
@@ -63,14 +231,6 @@ public class BufferPool {
     	BufferPool.pageSize = PAGE_SIZE;
     }
     
-    private Set<PageId> getAffectedPages(TransactionId tid) {
-        if(transactionToModifiedPagesMap.containsKey(tid))
-        	return transactionToModifiedPagesMap.get(tid);
-        
-        transactionToModifiedPagesMap.put(tid, new HashSet<PageId>());
-    	return transactionToModifiedPagesMap.get(tid);
-      }
-
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -89,25 +249,288 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, as part
+     * of a bulk scan.  If the page has to be read in and the scan's ring is
+     * full, the frame of the ring's oldest page is reused rather than one
+     * chosen by the eviction policy.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's buffer ring, or null for normal replacement
+     */
+    Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+    	Long snapshot = snapshots.get(tid);
+    	if (snapshot != null) {
+    	    if (perm != Permissions.READ_ONLY)
+    	        throw new DbException("transaction " + tid.getId() + " is read-only");
+    	    return versions.read(snapshot, fetchPage(tid, pid, ring));
+    	}
     	lockManager.getLock(tid, pid, perm);
-    	
-    	Page page = pages.get(pid);
-    	if (page == null) {
+    	if (perm != Permissions.READ_ONLY)
+    	    // the caller may mark the page dirty itself
+    	    writableBy(tid).add(pid);
+    	return fetchPage(tid, pid, ring);
+    }
+
+    /**
+     * Run tid as a read-only transaction that reads a snapshot of the
+     * database as of now, taking no locks: pages it gets are private
+     * copies of the version committed when the snapshot began, and it
+     * never waits for writers.  The snapshot ends when tid completes, or
+     * when {@link #endSnapshot} is called.
+     *
+     * @throws DbException if tid already holds locks
+     */
+    public void beginSnapshot(TransactionId tid) throws DbException {
+    	if (lockManager.holdsLocks(tid))
+    	    throw new DbException("transaction " + tid.getId() + " already holds locks");
+    	if (!snapshots.containsKey(tid))
+    	    snapshots.put(tid, versions.beginSnapshot());
+    }
+
+    /**
+     * @param tid the transaction reading the page, or null
+     * @return the resident copy of pid, reading it in if needed; takes no lock
+     */
+    private Page fetchPage(TransactionId tid, PageId pid, BufferRing ring)
+        throws DbException {
+    	BufferPoolShard shard = shardOf(pid);
+    	while (true) {
+    	    Page page = shard.get(pid);
+    	    if (page != null)
+    	        return page;
+    	    // miss: read into a reserved frame outside the latch so other
+    	    // threads can keep hitting; -1 means another thread read it
+    	    int frame;
+    	    try {
+    	        frame = shard.reserve(pid, true, ring);
+    	    } catch (DbException e) {
+    	        if (!steal(shard, tid))
+    	            throw e;
+    	        continue;
+    	    }
+    	    if (frame != -1)
+    	        return install(shard, frame, pid, readPage(shard, frame, pid), ring);
+    	}
+    }
 
-    		DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-			page = dbFile.readPage(pid);
+    /**
+     * Read pid into frame, which the caller has reserved in shard, giving
+     * the frame back if the read fails.
+     */
+    private Page readPage(BufferPoolShard shard, int frame, PageId pid)
+        throws DbException {
+    	Page page = null;
+    	try {
+    	    DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    	    page = dbFile.readPage(pid, shard.slab(frame));
+    	} finally {
+    	    if (page == null)
+    	        shard.cancel(frame, pid);
+    	}
+    	if (page == null)
+    	    throw new DbException("could not read page " + pid);
+    	return page;
+    }
 
-			if (pages.size() == numPages) {
-    			
-				this.evictPage();
-				this.addPageToCache(pid, page);
-    		}
-			this.addPageToCache(pid, page);
+    /** Install a page read into frame, adding it to ring if it is kept. */
+    private Page install(BufferPoolShard shard, int frame, PageId pid,
+                         Page page, BufferRing ring) {
+    	Page resident = shard.install(frame, pid, page);
+    	if (ring != null && resident == page)
+    	    ring.add(pid);
+    	return resident;
+    }
+
+    /**
+     * Load the specified page into the pool if it is not already resident
+     * or being read, without locking it.  Used for read-ahead, so it gives
+     * up quietly if there is no clean page to evict.
+     *
+     * @param pid the ID of the page to load
+     * @param ring the ring of the scan reading ahead, or null
+     * @see ReadAhead
+     */
+    void prefetchPage(PageId pid, BufferRing ring) {
+    	BufferPoolShard shard = shardOf(pid);
+    	long stamp = shard.modCount();
+    	try {
+    	    int frame = shard.reserve(pid, false, ring);
+    	    if (frame == -1)
+    	        return;
+    	    Page page = readPage(shard, frame, pid);
+    	    if (shard.install(frame, pid, page, stamp) == page && ring != null)
+    	        ring.add(pid);
+    	} catch (DbException e) {
+    	    // pool full of dirty pages; the scan will find out for itself
+    	}
+    }
+
+    /**
+     * Latch a page, shared or exclusive, for as long as the calling thread
+     * reads or changes it.  Used by access methods that lock data at a
+     * finer grain than pages.
+     *
+     * @see PageLatches
+     */
+    void latch(PageId pid, boolean exclusive) {
+    	latches.latch(pid, exclusive);
+    }
+
+    /** Release a latch taken with {@link #latch}. */
+    void unlatch(PageId pid, boolean exclusive) {
+    	latches.unlatch(pid, exclusive);
+    }
+
+    /**
+     * @return the resident copy of pid, reading it in if needed, without
+     *   locking it; the caller protects the page with its latch
+     */
+    Page getPageLatched(PageId pid) throws DbException {
+    	return fetchPage(null, pid, null);
+    }
+
+    /**
+     * Mark a page that tid changed without a page lock dirty, and make sure
+     * it is the resident copy of the page.  The caller holds the page's
+     * latch exclusively, so no other thread can have read the page back in
+     * if it was evicted before it was dirtied.
+     */
+    void dirtyLatched(TransactionId tid, Page page) throws DbException {
+    	dirtied(tid, page);
+    }
+
+    /**
+     * Mark page dirty by tid, which just changed it, and make it the
+     * resident copy of its page.
+     */
+    private void dirtied(TransactionId tid, Page page) throws DbException {
+    	markDirty(tid, page);
+    	pageLSN.remove(page.getId());
+    	cache(tid, page);
+    }
+
+    /** Mark page dirty by tid, and note it among the pages tid may dirty. */
+    private void markDirty(TransactionId tid, Page page) {
+    	page.markDirty(true, tid);
+    	writableBy(tid).add(page.getId());
+    }
+
+    private Set<PageId> writableBy(TransactionId tid) {
+    	return writablePages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Make page the resident copy of its page, stealing a frame for it if
+     * its shard is full.
+     *
+     * @param tid the transaction caching the page, or null
+     */
+    private void cache(TransactionId tid, Page page) throws DbException {
+    	BufferPoolShard shard = shardOf(page.getId());
+    	while (true) {
+    	    try {
+    	        shard.put(page.getId(), page);
+    	        return;
+    	    } catch (DbException e) {
+    	        if (!steal(shard, tid))
+    	            throw e;
+    	    }
+    	}
+    }
+
+    /**
+     * Write out a dirty page of shard, chosen by its eviction policy, so
+     * that the frame can be reused once the page is clean (STEAL).
+     *
+     * @param tid the transaction that needs the frame, or null
+     * @return false if shard has no page that may be stolen
+     * @see #stealable
+     */
+    private boolean steal(BufferPoolShard shard, TransactionId tid) throws DbException {
+    	TransactionId writer = TransactionId.system();
+    	try {
+    	    Page victim = shard.dirtyVictim(page -> stealable(page, tid, writer));
+    	    if (victim == null)
+    	        return false;
+    	    stealPages(Collections.singletonList(victim));
+    	    return true;
+    	} catch (IOException e) {
+    	    throw new DbException("could not write out a dirty page: " + e.getMessage());
+    	} finally {
+    	    lockManager.releaseAllLocksOfTransaction(writer);
     	}
-    	this.lruOfPage.put(pid, this.recentValue + 1);
-    	this.recentValue ++;
-    	
-        return page;
+    }
+
+    /**
+     * A dirty page may be stolen by tid if tid dirtied it itself and can
+     * roll it back from the log, or if the transaction that dirtied it has
+     * completed and writer, the steal's own system id, gets a share lock
+     * on it, so that no one changes the page while it is written.  Pages of running transactions other
+     * than tid are never stolen, as they may be changing them right now;
+     * nor are pages of key-range locked B+ trees, which are not logged.
+     */
+    private boolean stealable(Page page, TransactionId tid, TransactionId writer) {
+    	TransactionId dirtier = page.isDirty();
+    	if (keyLocked(page.getId()))
+    	    return false;
+    	if (dirtier.equals(tid))
+    	    return Database.getLogFile().isRunning(tid);
+    	return !lockManager.holdsLocks(dirtier)
+    	    && lockManager.tryAcquireSharedLock(writer, page.getId());
+    }
+
+    /**
+     * Lock a B+ tree key, and the gap below it, for tid.
+     *
+     * @see LockManager#getKeyLock
+     */
+    void lockKey(TransactionId tid, IndexKey key, Permissions perm)
+        throws TransactionAbortedException {
+    	lockManager.getKeyLock(tid, key, perm);
+    }
+
+    /**
+     * Lock a B+ tree key for tid only if that needs no waiting.
+     *
+     * @return true if tid now holds the lock
+     */
+    boolean tryLockKey(TransactionId tid, IndexKey key, Permissions perm) {
+    	return lockManager.tryKeyLock(tid, key, perm);
+    }
+
+    /** @return true if tid holds a lock on key, or its table, covering perm */
+    boolean holdsKeyLock(TransactionId tid, IndexKey key, Permissions perm) {
+    	return lockManager.holdsKeyLock(tid, key, perm);
+    }
+
+    /** Release tid's lock on a B+ tree key before tid completes. */
+    void releaseKey(TransactionId tid, IndexKey key) {
+    	lockManager.releaseKeyLock(tid, key);
+    }
+
+    /**
+     * Note that tid has changed a key-range locked B+ tree, which then has
+     * to write out or roll back tid's changes when tid completes.
+     */
+    void enlist(TransactionId tid, BTreeKeyLocks index) {
+    	keyLocked.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(index);
+    }
+
+    /** @return true if tid reads a snapshot rather than locking */
+    boolean isSnapshot(TransactionId tid) {
+    	return snapshots.containsKey(tid);
+    }
+
+    /** @return true if the specified page is currently cached */
+    boolean isResident(PageId pid) {
+    	return shardOf(pid).contains(pid);
     }
 
     /**
@@ -143,6 +566,16 @@ public class BufferPool {
         return lockManager.doesItHaveLock(tid, p);
     }
 
+    /**
+     * End the snapshot tid reads, if any.  A snapshot transaction holds no
+     * locks and dirties no pages, so this completes it.
+     */
+    void endSnapshot(TransactionId tid) {
+    	Long snapshot = snapshots.remove(tid);
+    	if (snapshot != null)
+    	    versions.endSnapshot(snapshot);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -152,29 +585,90 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
-    	
-    	if (lockManager.getAffectedPagesList(tid) == null) return;//Nothing to flush
-            
-    	Set<PageId> pageIds = lockManager.getAffectedPagesList(tid);
+    	endSnapshot(tid);
+
         if (commit) {
-        	for (PageId pageId: pageIds)
-                    flushPage(pageId);
-        } else {
-            for (PageId pageId: pageIds)
-                    discardPage(pageId);
+            if (Database.getLogFile().isRunning(tid))
+                commitLogged(tid);
+            else
+                flushPages(tid);
         }
+        // key-range locked trees undo and write out tid's changes to
+        // shared pages, so none of those is left dirty by tid
+        Set<BTreeKeyLocks> indexes = keyLocked.remove(tid);
+        if (indexes != null) {
+            for (BTreeKeyLocks index : indexes)
+                index.transactionComplete(tid, commit);
+        }
+        if (!commit)
+            restorePages(tid);
+        writablePages.remove(tid);
         
         lockManager.releaseAllLocksOfTransaction(tid);
        }
-    
-    private void addPageToCache(PageId pid, Page page) {
-    	this.pages.put(pid, page);
-    	this.recentValue += 1;
-    	Integer recentVal = new Integer(recentValue);
-    	
-    	this.lruOfPage.put(pid, recentVal);
+
+    /**
+     * Commit tid without writing its pages (NO FORCE): log the changes of
+     * the pages it dirtied, make them the committed versions and force the
+     * log up to tid's COMMIT record.  The pages stay dirty until they are
+     * evicted, written behind or checkpointed.
+     */
+    private void commitLogged(TransactionId tid) throws IOException {
+    	flushKeyLocked(tid);
+    	List<Page> pages = committedBy(tid);
+    	logUpdates(pages);
+    	loggedImage.keySet().removeAll(versions.stolenPages(tid));
+    	versions.commit(tid, pages);
+    	Database.getLogFile().logCommit(tid);
     }
 
+    /**
+     * Put back the committed versions of the pages the aborting tid
+     * dirtied.  Under NO FORCE they may hold changes of earlier commits
+     * that were never written, so they cannot just be dropped.  Pages tid
+     * wrote out are written again with their committed versions, which
+     * {@link LogFile#rollback} has already done for transactions it knows.
+     */
+    private void restorePages(TransactionId tid) throws IOException {
+    	List<Page> restored = new ArrayList<Page>();
+    	for (Page page : dirtiedBy(tid))
+    	    restored.add(versions.committed(page));
+    	List<Page> writeBack = new ArrayList<Page>(versions.abort(tid));
+    	for (Page page : writeBack)
+    	    discardPage(page.getId());
+    	for (Page page : restored) {
+    	    try {
+    	        dirtied(tid, page);
+    	    } catch (DbException e) {
+    	        // no frame to put it in; write it out instead
+    	        writeBack.add(page);
+    	    }
+    	}
+    	for (Page page : writeBack) {
+    	    markDirty(tid, page);
+    	    pageLSN.remove(page.getId());
+    	}
+    	logUpdates(writeBack);
+    	for (Page page : writeBack)
+    	    loggedImage.remove(page.getId());
+    	writePages(writeBack);
+    	// pages the inserts of tid filled have room again
+    	for (Page page : restored)
+    	    restoredFreeSpace(page);
+    	for (Page page : writeBack)
+    	    restoredFreeSpace(page);
+    }
+
+    /**
+     * Bring the free space map of a heap file up to date with page, a
+     * committed version put back by an abort.
+     */
+    private static void restoredFreeSpace(Page page) throws IOException {
+    	DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+    	if (file instanceof HeapFile)
+    	    ((HeapFile) file).pageRestored((HeapPage) page);
+    }
+    
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -196,8 +690,7 @@ public class BufferPool {
     		DbFile dbfile = Database.getCatalog().getDatabaseFile(tableId);
     		ArrayList<Page> modified = dbfile.insertTuple(tid, t);
     		for(int i = 0 ; i < modified.size();i++) {
-    			modified.get(i).markDirty(true, tid);
-    			this.addPageToCache(modified.get(i).getId(), modified.get(i));
+    			dirtied(tid, modified.get(i));
     		}
     }
 
@@ -221,21 +714,151 @@ public class BufferPool {
     	ArrayList<Page> modified = dFile.deleteTuple(tid, t);
         
     	for(int i = 0 ; i < modified.size();i++) {
-			modified.get(i).markDirty(true, tid);
-			this.addPageToCache(modified.get(i).getId(), modified.get(i));
-		}
+    		dirtied(tid, modified.get(i));
+    	}
     }
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Flush all dirty pages to disk, including uncommitted ones, which are
+     * logged first so that they can still be rolled back.
+     * NB: Be careful using this routine -- pages that are being changed
+     *     while it runs may be written half done.
      */
-    public synchronized void flushAllPages() throws IOException {
-        
-		for (PageId key : this.pages.keySet()) {
-			this.flushPage(key);
-		}
+    public void flushAllPages() throws IOException {
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        for (BufferPoolShard shard : shards)
+            dirty.addAll(shard.dirtyPages());
+        stealPages(dirty);
+    }
+
+    /**
+     * Log and write out pages, some of which running transactions may
+     * still change or roll back.  The committed versions of those are
+     * kept aside until their transactions complete, since once evicted the
+     * pages are read back without them.
+     */
+    private void stealPages(Collection<Page> pages) throws IOException {
+        List<Page> running = new ArrayList<Page>();
+        for (Page page : pages) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null && !keyLocked(page.getId())
+                && lockManager.holdsLocks(dirtier)) {
+                versions.steal(dirtier, page);
+                running.add(page);
+            }
+        }
+        logUpdates(pages);
+        LogFile log = Database.getLogFile();
+        for (Page page : running)
+            loggedImage.put(page.getId(),
+                            log.newPage(page.getClass(), page.getId(), page.getPageData()));
+        writePages(pages);
+    }
+
+    /**
+     * Log an UPDATE record for each dirty page whose current contents are
+     * not in the log yet, so that writing it out can be undone or redone
+     * by recovery.  The record takes the page from the image last logged
+     * for it: its committed version, unless a running transaction wrote
+     * it out since.  The log is not forced.  Pages of key-range locked B+
+     * trees are shared by transactions, and such trees roll back changes
+     * to them themselves, so they are not logged; logged transactions may
+     * not change them.
+     */
+    private void logUpdates(Collection<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (Page page : pages) {
+            TransactionId dirtier = page.isDirty();
+            PageId pid = page.getId();
+            if (dirtier == null || keyLocked(pid) || pageLSN.containsKey(pid))
+                continue;
+            // under the log's monitor, so that no checkpoint sees the
+            // record without the page in its dirty page table
+            synchronized (log) {
+                Page before = loggedImage.get(pid);
+                long lsn = log.logWrite(dirtier,
+                                        before != null ? before : versions.committed(page), page);
+                pageLSN.put(pid, lsn);
+                recLSN.putIfAbsent(pid, lsn);
+            }
+        }
+    }
+
+    /**
+     * @return the LSN of the oldest record recovery would have to redo
+     * for each page whose logged changes are not on disk yet, by page id
+     * @see LogFile#logCheckpoint
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        return new HashMap<PageId, Long>(recLSN);
+    }
+
+    private static boolean keyLocked(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return file instanceof BTreeFile && ((BTreeFile) file).usesKeyLocking();
+    }
+
+    /**
+     * Write pages to disk, grouped by table, and mark them clean.  Each
+     * table's pages go to {@link DbFile#writePages} together so that
+     * adjacent pages can be coalesced.  The log is flushed up to the
+     * newest UPDATE record of the pages first, so that their records reach
+     * disk before they do.  Callers must make sure no transaction modifies
+     * the pages meanwhile.
+     */
+    private void writePages(Collection<Page> pages) throws IOException {
+        long lsn = -1;
+        for (Page page : pages) {
+            Long logged = pageLSN.get(page.getId());
+            if (logged != null)
+                lsn = Math.max(lsn, logged);
+        }
+        if (lsn >= 0)
+            Database.getLogFile().flushToLSN(lsn);
+        TreeMap<Integer, List<Page>> byTable = new TreeMap<Integer, List<Page>>();
+        for (Page page : pages)
+            byTable.computeIfAbsent(page.getId().getTableId(), t -> new ArrayList<Page>()).add(page);
+        for (Map.Entry<Integer, List<Page>> table : byTable.entrySet()) {
+            Database.getCatalog().getDatabaseFile(table.getKey()).writePages(table.getValue());
+            for (Page page : table.getValue()) {
+                page.markDirty(false, null);
+                pageLSN.remove(page.getId());
+                recLSN.remove(page.getId());
+            }
+        }
+    }
+
+    /**
+     * Write out dirty pages whose dirtying transaction holds no locks any
+     * more, so nothing can change them until another transaction locks
+     * them.  Each such page is share locked under a system id of the
+     * pass's own while it is written; pages that are locked by someone
+     * else are skipped.
+     *
+     * @return the number of pages written
+     * @see BackgroundWriter
+     */
+    int writeBehind() throws IOException {
+        ArrayList<Page> batch = new ArrayList<Page>();
+        TransactionId writer = TransactionId.system();
+        try {
+            for (BufferPoolShard shard : shards) {
+                for (Page page : shard.dirtyPages()) {
+                    TransactionId dirtier = page.isDirty();
+                    if (dirtier == null || lockManager.holdsLocks(dirtier))
+                        continue;
+                    if (!lockManager.tryAcquireSharedLock(writer, page.getId()))
+                        continue;
+                    if (page.isDirty() != null)
+                        batch.add(page);
+                }
+            }
+            logUpdates(batch);
+            writePages(batch);
+            return batch.size();
+        } finally {
+            lockManager.releaseAllLocksOfTransaction(writer);
+        }
     }
     
     /** Remove the specific page id from the buffer pool.
@@ -246,76 +869,68 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-    	pages.remove(pid);
-        lruOfPage.remove(pid);
-    }
-
-    /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
-     */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-    	if(!this.pages.containsKey(pid))
-    		return;
-    	if(this.pages.get(pid) == null)
-    		return;
-        Page page = this.pages.get(pid);
-        if(page.isDirty() != null) {
-        	DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-			dbFile.writePage(page);
-			page.markDirty(false, null);
-        }
+        shardOf(pid).discard(pid);
+        pageLSN.remove(pid);
+        recLSN.remove(pid);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2|lab3|lab4
-    	for(PageId pid:getAffectedPages(tid))
-    	{
-    		flushPage(pid);
+    	flushKeyLocked(tid);
+    	List<Page> dirty = dirtiedBy(tid);
+    	// while the before images are still those of the last commit
+    	logUpdates(dirty);
+    	loggedImage.keySet().removeAll(versions.stolenPages(tid));
+    	// before the pages reach disk, where a snapshot could read them
+    	versions.commit(tid, committedBy(tid));
+    	writePages(dirty);
+    }
+
+    /** Have the key-range locked B+ trees tid changed write out its changes. */
+    private void flushKeyLocked(TransactionId tid) throws IOException {
+    	Set<BTreeKeyLocks> indexes = keyLocked.get(tid);
+    	if (indexes != null) {
+    	    for (BTreeKeyLocks index : indexes)
+    	        index.flush(tid);
     	}
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * @return the resident pages dirtied by tid, and the resident copies of
+     *   pages tid wrote out while running, whose before images commit has
+     *   to bring up to date
      */
-    private synchronized  void evictPage2() throws DbException {
-    	PageId keyOfLeastRecent = null;
-    	int minimumValue = 1000000;
-    	
-    	for (PageId key : this.pages.keySet()) {
-			
-			if(this.lruOfPage.get(key).intValue() < minimumValue) {
-				keyOfLeastRecent = key;
-				minimumValue = this.lruOfPage.get(key).intValue();
-			}
-		}
-    	try {
-			if(this.pages.get(keyOfLeastRecent).isDirty() != null)
-				this.flushPage(keyOfLeastRecent);
-			pages.remove(keyOfLeastRecent);
-			lruOfPage.remove(keyOfLeastRecent);
-				
-		} 
-    	catch (IOException e) {
-			e.printStackTrace();
-		}
+    private List<Page> committedBy(TransactionId tid) {
+    	List<Page> pages = dirtiedBy(tid);
+    	for (PageId pid : versions.stolenPages(tid)) {
+    	    Page page = shardOf(pid).get(pid);
+    	    if (page != null && page.isDirty() == null)
+    	        pages.add(page);
+    	}
+    	return pages;
     }
-    
-    private synchronized  void evictPage() throws DbException {
-        for (PageId pid : this.pages.keySet()) {
-            Page   p   = pages.get(pid);
-            if (p.isDirty() == null) {                
-                discardPage(pid);
-                return;
-            }
-        }
-        throw new DbException("No Dirty page found");
+
+    /**
+     * @return the resident pages dirtied by tid.  The pages tid got for
+     *   writing are looked up rather than tid's page locks, as a table
+     *   lock may cover the pages tid wrote.
+     */
+    private List<Page> dirtiedBy(TransactionId tid) {
+    	ArrayList<Page> dirty = new ArrayList<Page>();
+    	Set<PageId> pids = writablePages.get(tid);
+    	if (pids == null)
+    	    return dirty;
+    	for (PageId pid : pids) {
+    	    Page page = shardOf(pid).peek(pid);
+    	    if (page != null && tid.equals(page.isDirty()))
+    	        dirty.add(page);
+    	}
+    	return dirty;
     }
 }
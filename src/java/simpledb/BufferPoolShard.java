@@ -0,0 +1,306 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/**
+ * BufferPoolShard is one hash partition of the BufferPool.  It owns a fixed
+ * array of page frames, the free list for those frames and an eviction
+ * policy, all protected by the shard's own monitor.  Pages that hash to
+ * different shards never contend for the same latch.
+ * <p>
+ * A miss reserves a frame first and reads the page outside the latch; if
+ * the pool has an off-heap {@link PageArena}, the page is read straight into
+ * the slab of the reserved frame.  Other threads that miss on a page that
+ * is being read wait for that read rather than issuing their own.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+class BufferPoolShard {
+
+    /** Page frames; a null entry is a free frame. */
+    private final Page[] frames;
+
+    /** Frame number of every resident page. */
+    private final Map<PageId, Integer> frameOf;
+
+    /** Frames that hold no page. */
+    private final ArrayDeque<Integer> freeFrames;
+
+    /** Chooses victim frames once freeFrames runs dry. */
+    private final EvictionPolicy policy;
+
+    /** Pages being read into a reserved frame. */
+    private final Set<PageId> loading = new HashSet<PageId>();
+
+    /**
+     * Bumped whenever a page is discarded or cached without being read, so
+     * that a read racing with either can tell its copy may be stale.
+     */
+    private long modCount = 0;
+
+    /** Off-heap slab of each frame, or null. */
+    private final ByteBuffer[] slabs;
+
+    /** Frames whose page reads from the frame's slab. */
+    private final boolean[] onSlab;
+
+    /**
+     * @param numFrames the number of pages this shard may cache
+     * @param policyFactory creates the eviction policy for numFrames frames
+     */
+    BufferPoolShard(int numFrames, IntFunction<EvictionPolicy> policyFactory) {
+        this(numFrames, policyFactory, null, 0);
+    }
+
+    /**
+     * @param numFrames the number of pages this shard may cache
+     * @param policyFactory creates the eviction policy for numFrames frames
+     * @param arena off-heap slabs for the frames, or null
+     * @param slabBase the slab in arena backing frame 0; frame i uses
+     *   slab slabBase + i
+     */
+    BufferPoolShard(int numFrames, IntFunction<EvictionPolicy> policyFactory,
+                    PageArena arena, int slabBase) {
+        slabs = arena == null ? null : new ByteBuffer[numFrames];
+        for (int i = 0; slabs != null && i < numFrames; i++)
+            slabs[i] = arena.slab(slabBase + i);
+        onSlab = new boolean[numFrames];
+        frames = new Page[numFrames];
+        frameOf = new HashMap<PageId, Integer>();
+        freeFrames = new ArrayDeque<Integer>(numFrames);
+        for (int i = 0; i < numFrames; i++)
+            freeFrames.add(i);
+        policy = policyFactory.apply(numFrames);
+    }
+
+    /** @return the cached page with id pid, or null if it is not resident */
+    synchronized Page get(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null)
+            return null;
+        policy.frameAccessed(frame);
+        return frames[frame];
+    }
+
+    /**
+     * @return the cached page with id pid, or null if it is not resident;
+     *   does not count as an access
+     */
+    synchronized Page peek(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        return frame == null ? null : frames[frame];
+    }
+
+    /** @return true if pid is resident; does not count as an access */
+    synchronized boolean contains(PageId pid) {
+        return frameOf.containsKey(pid);
+    }
+
+    /** @return the current modification stamp, for {@link #install} */
+    synchronized long modCount() {
+        return modCount;
+    }
+
+    /**
+     * Set aside a frame for reading pid, evicting a clean page if there is
+     * no free frame.  The frame must be handed back with {@link #install}
+     * or {@link #cancel}.
+     *
+     * @param wait whether to wait for a read of pid already in progress
+     * @param ring the bulk scan ring to recycle a page of, or null
+     * @return the reserved frame, or -1 if pid is resident, or being read
+     *   and wait is false
+     * @throws DbException if the shard is full of dirty pages, or the
+     *   thread is interrupted while waiting
+     */
+    synchronized int reserve(PageId pid, boolean wait, BufferRing ring)
+        throws DbException {
+        while (loading.contains(pid)) {
+            if (!wait)
+                return -1;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted waiting for " + pid);
+            }
+        }
+        if (frameOf.containsKey(pid))
+            return -1;
+        Integer frame = freeFrames.poll();
+        if (frame == null)
+            frame = recycle(ring);
+        if (frame == -1)
+            frame = evictPage();
+        loading.add(pid);
+        return frame;
+    }
+
+    /**
+     * @return the off-heap slab of a reserved frame, or null if this shard
+     *   has no arena or the page size has changed since it was allocated
+     */
+    ByteBuffer slab(int frame) {
+        if (slabs == null || slabs[frame].capacity() != BufferPool.getPageSize())
+            return null;
+        return slabs[frame];
+    }
+
+    /**
+     * Cache page, read for pid into reserved frame, unless another thread
+     * cached pid first, in which case the frame is freed again.
+     *
+     * @return the page now resident for pid
+     */
+    synchronized Page install(int frame, PageId pid, Page page) {
+        return install(frame, pid, page, modCount);
+    }
+
+    /**
+     * Like {@link #install}, but page is dropped if any page of the shard
+     * was discarded or put since {@link #modCount} returned stamp.
+     *
+     * @return the page now resident for pid, or null if page was dropped
+     */
+    synchronized Page install(int frame, PageId pid, Page page, long stamp) {
+        loading.remove(pid);
+        notifyAll();
+        Page cached = get(pid);
+        if (cached != null || stamp != modCount) {
+            freeFrames.push(frame);
+            return cached;
+        }
+        frames[frame] = page;
+        onSlab[frame] = slabs != null && page instanceof SlabPage
+            && ((SlabPage) page).readsFrom(slabs[frame]);
+        frameOf.put(pid, frame);
+        policy.frameFilled(frame);
+        return page;
+    }
+
+    /** Give back the frame reserved for pid, whose read failed. */
+    synchronized void cancel(int frame, PageId pid) {
+        loading.remove(pid);
+        notifyAll();
+        freeFrames.push(frame);
+    }
+
+    /**
+     * Cache page, replacing any version of it already resident, evicting
+     * a clean page if there is no free frame.
+     *
+     * @throws DbException if the shard is full of dirty pages
+     */
+    synchronized void put(PageId pid, Page page) throws DbException {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            if (frames[frame] != page)
+                releaseSlab(frame);
+            frames[frame] = page;
+            policy.frameAccessed(frame);
+            return;
+        }
+        frame = freeFrames.poll();
+        if (frame == null)
+            frame = evictPage();
+        frames[frame] = page;
+        frameOf.put(pid, frame);
+        policy.frameFilled(frame);
+        modCount++;
+    }
+
+    /** Drop pid from the shard without writing it out. */
+    synchronized void discard(PageId pid) {
+        modCount++;
+        Integer frame = frameOf.remove(pid);
+        if (frame == null)
+            return;
+        releaseSlab(frame);
+        frames[frame] = null;
+        policy.frameEmptied(frame);
+        freeFrames.push(frame);
+    }
+
+    /** @return every dirty resident page */
+    synchronized List<Page> dirtyPages() {
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        for (Page page : frames) {
+            if (page != null && page.isDirty() != null)
+                dirty.add(page);
+        }
+        return dirty;
+    }
+
+    /**
+     * Chooses a dirty page to write out with the eviction policy, so that
+     * its frame can be reused once it is clean.  Writing it is up to the
+     * caller, outside this shard's monitor (see BufferPool#steal).
+     *
+     * @param stealable tests whether a dirty page may be written out now
+     * @return the chosen page, or null if no dirty page passes stealable
+     */
+    synchronized Page dirtyVictim(Predicate<Page> stealable) {
+        int frame = policy.chooseVictim(
+            f -> frames[f].isDirty() != null && stealable.test(frames[f]));
+        return frame == -1 ? null : frames[frame];
+    }
+
+    /**
+     * Chooses a clean page with the eviction policy and drops it from the
+     * shard.  Dirty pages are never evicted here, as they have to be
+     * logged and written first; the BufferPool does that when this fails.
+     *
+     * @return the frame freed up for reuse
+     * @throws DbException if every resident page is dirty
+     */
+    private int evictPage() throws DbException {
+        int frame = policy.chooseVictim(f -> frames[f].isDirty() == null);
+        if (frame == -1)
+            throw new DbException("all buffer pool pages are dirty");
+        empty(frame);
+        return frame;
+    }
+
+    /**
+     * Evict the oldest clean page of a full ring that lives in this shard.
+     *
+     * @return the frame freed up, or -1 if ring is null, not yet full, or
+     *   has no clean page here
+     */
+    private int recycle(BufferRing ring) {
+        if (ring == null || !ring.isFull())
+            return -1;
+        for (PageId old : ring.pages()) {
+            Integer frame = frameOf.get(old);
+            if (frame != null && frames[frame].isDirty() == null) {
+                ring.remove(old);
+                empty(frame);
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    /** Drop the page in frame, which the caller reuses. */
+    private void empty(int frame) {
+        frameOf.remove(frames[frame].getId());
+        releaseSlab(frame);
+        frames[frame] = null;
+        policy.frameEmptied(frame);
+    }
+
+    /**
+     * Detach the page leaving frame from the frame's slab, if it reads from
+     * it, since the slab is about to be reused; threads still holding the
+     * page keep a heap copy.
+     */
+    private void releaseSlab(int frame) {
+        if (onSlab[frame])
+            ((SlabPage) frames[frame]).releaseSlab();
+        onSlab[frame] = false;
+    }
+}
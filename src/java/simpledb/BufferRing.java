@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BufferRing is the access strategy for a bulk sequential scan, after
+ * PostgreSQL's buffer rings.  A scan of a table too big to fit in the
+ * BufferPool gains nothing from caching it, and reading it through the
+ * normal replacement policy would push out every hot page, such as B+ tree
+ * internal pages and small tables.  Instead the scan remembers the pages it
+ * read in, and once it has read in capacity pages, it makes room for the
+ * next one by evicting the oldest of its own pages rather than asking the
+ * eviction policy.
+ * <p>
+ * Pages the scan finds already resident are not added to the ring, so a
+ * scan never evicts pages it did not load.  The ring size is set by the
+ * simpledb.ScanRingPages system property and is at most a quarter of the
+ * pool.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ * @Threadsafe
+ */
+class BufferRing {
+
+    /** Name of the system property that sets the ring size. */
+    public static final String PAGES_PROPERTY = "simpledb.ScanRingPages";
+
+    private static final int RING_PAGES = Integer.getInteger(PAGES_PROPERTY, 32);
+
+    /** Pages loaded by the scan, oldest first. */
+    private final ArrayDeque<PageId> pages = new ArrayDeque<PageId>();
+    private final int capacity;
+
+    /**
+     * @param capacity the number of pages the scan may keep resident
+     */
+    BufferRing(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return a ring for a scan of a table of tablePages pages, or null if
+     *   the table fits in bp and should be cached as usual
+     */
+    static BufferRing forScan(BufferPool bp, int tablePages) {
+        if (tablePages <= bp.getNumPages())
+            return null;
+        return new BufferRing(Math.max(1, Math.min(RING_PAGES, bp.getNumPages() / 4)));
+    }
+
+    /** @return the number of pages the scan may keep resident */
+    int capacity() {
+        return capacity;
+    }
+
+    /** Record that the scan read pid into the pool. */
+    synchronized void add(PageId pid) {
+        pages.add(pid);
+        // the ring could not recycle a page, e.g. because it was dirtied;
+        // let the oldest go back to the eviction policy
+        if (pages.size() > capacity)
+            pages.poll();
+    }
+
+    /** @return true once loading another page should recycle one */
+    synchronized boolean isFull() {
+        return pages.size() >= capacity;
+    }
+
+    /** @return a snapshot of the ring's pages, oldest first */
+    synchronized List<PageId> pages() {
+        return new ArrayList<PageId>(pages);
+    }
+
+    /** Forget pid, which has been evicted. */
+    synchronized void remove(PageId pid) {
+        pages.remove(pid);
+    }
+}
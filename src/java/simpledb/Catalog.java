@@ -147,7 +147,11 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [option ...]
+                //where the options are "btree", to store the table as a B+ tree
+                //keyed on its primary key, "keylocks", to do so and lock its
+                //keys rather than its pages, and "mmap", to read it through a
+                //memory mapping
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -178,7 +182,32 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                boolean btree = false;
+                boolean mmap = false;
+                boolean keyLocks = false;
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (option.equals("btree"))
+                        btree = true;
+                    else if (option.equals("keylocks"))
+                        btree = keyLocks = true;
+                    else if (option.equals("mmap"))
+                        mmap = true;
+                    else if (!option.isEmpty()) {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf;
+                if (btree) {
+                    if (primaryKey.equals("")) {
+                        System.out.println("B+ tree table " + name + " needs a pk field");
+                        System.exit(0);
+                    }
+                    tabHf = new BTreeFile(tabFile, names.indexOf(primaryKey), t, mmap, keyLocks);
+                } else {
+                    tabHf = new HeapFile(tabFile, t, mmap);
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
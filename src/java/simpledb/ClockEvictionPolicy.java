@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK (second chance) replacement.  Every frame has a reference bit that is
+ * set on each access.  The clock hand sweeps the frames in order, clearing
+ * reference bits as it passes, and stops at the first occupied, evictable
+ * frame whose bit is already clear.
+ * <p>
+ * Accesses only set a bit, and a victim is normally found within a few
+ * steps of the hand, so both operations are constant time in the common
+ * case.  The hand never sweeps more than twice around the clock.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final boolean[] occupied;
+    private final boolean[] referenced;
+    private int hand = 0;
+
+    /**
+     * @param numFrames the number of frames in the buffer pool
+     */
+    public ClockEvictionPolicy(int numFrames) {
+        occupied = new boolean[numFrames];
+        referenced = new boolean[numFrames];
+    }
+
+    public void frameFilled(int frame) {
+        occupied[frame] = true;
+        referenced[frame] = true;
+    }
+
+    public void frameAccessed(int frame) {
+        referenced[frame] = true;
+    }
+
+    public void frameEmptied(int frame) {
+        occupied[frame] = false;
+        referenced[frame] = false;
+    }
+
+    public int chooseVictim(IntPredicate evictable) {
+        int n = occupied.length;
+        // first pass clears reference bits, second pass must find any
+        // evictable frame that exists
+        for (int steps = 0; steps < 2 * n; steps++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            if (!occupied[frame])
+                continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (evictable.test(frame))
+                return frame;
+        }
+        return -1;
+    }
+}
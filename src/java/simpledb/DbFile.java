@@ -3,6 +3,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -19,6 +20,20 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into frame, a page sized buffer
+     * positioned at 0 that the BufferPool reserves for it.  Files whose
+     * pages can be read in place override this; by default the page is
+     * read onto the heap and frame is left unused.
+     *
+     * @param frame the buffer to read into, or null if the BufferPool has
+     *   no off-heap frames
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     */
+    public default Page readPage(PageId id, ByteBuffer frame) {
+        return readPage(id);
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -28,6 +43,19 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push a batch of pages of this file to disk.  Files override this to
+     * coalesce adjacent pages into fewer writes; by default each page is
+     * written with {@link #writePage}.
+     *
+     * @param pages the pages to write; the list may be reordered
+     * @throws IOException if a write fails
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
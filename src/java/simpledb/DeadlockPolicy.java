@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * DeadlockPolicy decides what the {@link LockManager} does when a lock
+ * request has to wait.  Policies other than DETECT prevent deadlocks
+ * instead of finding them, trading unnecessary aborts for not having to
+ * search the wait-for graph.  Transaction age comes from
+ * {@link TransactionId#getId}: a lower id is an older transaction.  The
+ * buffer pool's system writers have no age: they only hold locks
+ * briefly and never wait, so waiting for them is always allowed.
+ *
+ * @see LockManager
+ */
+public enum DeadlockPolicy {
+    /** Wait, and abort the youngest transaction on any cycle of waits. */
+    DETECT,
+    /** Never wait: abort the requester. */
+    NO_WAIT,
+    /** An older requester waits; a younger one aborts. */
+    WAIT_DIE,
+    /** An older requester aborts the younger transactions in its way; a younger one waits. */
+    WOUND_WAIT,
+    /** Wait for up to simpledb.LockTimeoutMs, then abort the requester. */
+    TIMEOUT;
+
+    /** Name of the system property used to pick the policy. */
+    public static final String POLICY_PROPERTY = "simpledb.DeadlockPolicy";
+
+    /** Name of the system property that sets the TIMEOUT policy's limit. */
+    public static final String TIMEOUT_PROPERTY = "simpledb.LockTimeoutMs";
+
+    private static final long TIMEOUT_MS = Long.getLong(TIMEOUT_PROPERTY, 500);
+
+    /** @return true if the lock manager should look for deadlocks */
+    boolean detects() {
+        return this == DETECT;
+    }
+
+    /**
+     * @param tid a transaction whose request is blocked
+     * @param blockers the transactions it has to wait for
+     * @param waitedMs how long it has waited so far
+     * @return true if tid should abort rather than wait
+     */
+    boolean dies(TransactionId tid, Set<TransactionId> blockers, long waitedMs) {
+        switch (this) {
+        case NO_WAIT:
+            return true;
+        case WAIT_DIE:
+            for (TransactionId b : blockers) {
+                if (!b.isSystem() && b.getId() < tid.getId())
+                    return true;
+            }
+            return false;
+        case TIMEOUT:
+            return waitedMs >= TIMEOUT_MS;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @param tid a transaction whose request is blocked
+     * @param blockers the transactions it has to wait for
+     * @return the blockers tid aborts before waiting
+     */
+    Set<TransactionId> wounds(TransactionId tid, Set<TransactionId> blockers) {
+        if (this != WOUND_WAIT)
+            return Collections.emptySet();
+        Set<TransactionId> younger = new HashSet<TransactionId>();
+        for (TransactionId b : blockers) {
+            if (!b.isSystem() && b.getId() > tid.getId())
+                younger.add(b);
+        }
+        return younger;
+    }
+
+    /**
+     * Look up a policy by name: "detect", "no-wait", "wait-die",
+     * "wound-wait" or "timeout"; anything else falls back to DETECT.
+     *
+     * @param name the policy name, case insensitive; may be null
+     */
+    public static DeadlockPolicy forName(String name) {
+        if (name != null) {
+            for (DeadlockPolicy p : values()) {
+                if (p.name().replace('_', '-').equalsIgnoreCase(name))
+                    return p;
+            }
+        }
+        return DETECT;
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * EvictionPolicy is the page replacement strategy used by the BufferPool.
+ * The BufferPool holds its pages in a fixed array of frames, and the policy
+ * only ever deals with frame numbers in the range [0, numFrames).
+ * <p>
+ * The BufferPool tells the policy when a frame is filled, hit or emptied, and
+ * asks it for a victim when every frame is occupied.  Whether a given frame
+ * may be evicted at all (e.g. it holds a dirty page not yet written) is
+ * decided by the BufferPool and passed to {@link #chooseVictim} as a
+ * predicate; the policy must never return a frame the predicate rejects.
+ * <p>
+ * Implementations are not thread safe; the BufferPool calls them while
+ * holding its own latch.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /** Name of the system property used to pick the default policy. */
+    public static final String POLICY_PROPERTY = "simpledb.EvictionPolicy";
+
+    /**
+     * Called when a page has been installed into an empty frame.
+     *
+     * @param frame the frame that now holds a page
+     */
+    public void frameFilled(int frame);
+
+    /**
+     * Called on every access to the page held in frame.
+     *
+     * @param frame the frame that was accessed
+     */
+    public void frameAccessed(int frame);
+
+    /**
+     * Called when a frame is emptied, either because it was chosen as a
+     * victim or because its page was discarded.
+     *
+     * @param frame the frame that no longer holds a page
+     */
+    public void frameEmptied(int frame);
+
+    /**
+     * Pick the frame whose page should be evicted next.  The chosen frame is
+     * not emptied by this call; the caller follows up with
+     * {@link #frameEmptied} once the page is gone.
+     *
+     * @param evictable returns true for frames whose page may be evicted
+     * @return the victim frame, or -1 if no occupied frame is evictable
+     */
+    public int chooseVictim(IntPredicate evictable);
+
+    /**
+     * Create a policy by name.  Known names are "clock", "lru" and "2q";
+     * anything else falls back to CLOCK.
+     *
+     * @param name the policy name, case insensitive; may be null
+     * @param numFrames the number of frames the policy will manage
+     */
+    public static EvictionPolicy forName(String name, int numFrames) {
+        if (name != null) {
+            if (name.equalsIgnoreCase("lru"))
+                return new LruEvictionPolicy(numFrames);
+            if (name.equalsIgnoreCase("2q"))
+                return new TwoQueueEvictionPolicy(numFrames);
+        }
+        return new ClockEvictionPolicy(numFrames);
+    }
+}
@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileHandleCache keeps one open FileChannel per database file, so that page
+ * reads and writes are single positional system calls instead of an open,
+ * seek, read or write and close each.  At most simpledb.MaxOpenFiles
+ * channels (default 64) are kept open; opening another closes the least
+ * recently used one.  Open channels are found in a concurrent hash table
+ * without locking; only opening and evicting channels is serialized.
+ * <p>
+ * Writes are not forced.  The files written since the last
+ * {@link #forceAll} are remembered, so that a checkpoint can force them
+ * before the log records that could redo them are truncated.
+ * <p>
+ * A channel may be closed under a thread that is using it, by the LRU limit
+ * or by another thread being interrupted mid-I/O.  Every operation here
+ * reopens the file and retries once when that happens.
+ *
+ * @Threadsafe
+ */
+class FileHandleCache {
+
+    /** Name of the system property that limits the open channels. */
+    public static final String MAX_OPEN_PROPERTY = "simpledb.MaxOpenFiles";
+
+    private static final int MAX_OPEN = Math.max(1, Integer.getInteger(MAX_OPEN_PROPERTY, 64));
+
+    /** An open channel, stamped with the time it was last used. */
+    private static class Handle {
+        final FileChannel channel;
+        volatile long used;
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /** Open channels by absolute file. */
+    private static final ConcurrentMap<File, Handle> channels =
+        new ConcurrentHashMap<File, Handle>();
+
+    /** Serializes opening channels and evicting the least recently used. */
+    private static final Object opening = new Object();
+
+    /** Counts channel uses, to stamp handles with. */
+    private static final AtomicLong clock = new AtomicLong();
+
+    /** Absolute files written since they were last forced. */
+    private static final Set<File> unforced = ConcurrentHashMap.newKeySet();
+
+    private FileHandleCache() {
+    }
+
+    /** A positional I/O call that may be retried on a fresh channel. */
+    private interface ChannelOp<T> {
+        T apply(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * @return an open channel for f, opening it if need be
+     * @throws FileNotFoundException if f does not exist
+     */
+    static FileChannel channel(File f) throws IOException {
+        File key = f.getAbsoluteFile();
+        Handle handle = channels.get(key);
+        if (handle == null || !handle.channel.isOpen()) {
+            synchronized (opening) {
+                handle = channels.get(key);
+                if (handle == null || !handle.channel.isOpen()) {
+                    // "rw" would quietly create a missing file
+                    if (!key.exists())
+                        throw new FileNotFoundException(key.getPath());
+                    handle = new Handle(new RandomAccessFile(key, "rw").getChannel());
+                    channels.put(key, handle);
+                    if (channels.size() > MAX_OPEN)
+                        evictEldest(key);
+                }
+            }
+        }
+        handle.used = clock.incrementAndGet();
+        return handle.channel;
+    }
+
+    /** Close the least recently used channel but the one for keep.  Caller holds opening. */
+    private static void evictEldest(File keep) {
+        File eldest = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<File, Handle> e : channels.entrySet()) {
+            if (!e.getKey().equals(keep) && e.getValue().used < oldest) {
+                eldest = e.getKey();
+                oldest = e.getValue().used;
+            }
+        }
+        if (eldest != null)
+            close(channels.remove(eldest).channel);
+    }
+
+    private static <T> T withChannel(File f, ChannelOp<T> op) throws IOException {
+        try {
+            return op.apply(channel(f));
+        } catch (ClosedChannelException e) {
+            if (Thread.currentThread().isInterrupted())
+                throw e;
+            // closed under us; the next channel() call reopens the file
+            return op.apply(channel(f));
+        }
+    }
+
+    /**
+     * Fill dst from f starting at position, stopping early at end of file.
+     *
+     * @return the number of bytes read
+     */
+    static int read(File f, ByteBuffer dst, long position) throws IOException {
+        return withChannel(f, channel -> {
+            ByteBuffer buf = dst.duplicate();
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position() - dst.position()) == -1)
+                    break;
+            }
+            return buf.position() - dst.position();
+        });
+    }
+
+    /** Write all of src to f at position. */
+    static void write(File f, ByteBuffer src, long position) throws IOException {
+        unforced.add(f.getAbsoluteFile());
+        withChannel(f, channel -> {
+            ByteBuffer buf = src.duplicate();
+            while (buf.hasRemaining())
+                channel.write(buf, position + buf.position() - src.position());
+            return null;
+        });
+    }
+
+    /**
+     * Write all of srcs to f at position with gathering writes.  Gathering
+     * writes use the channel's file position, so they are serialized on the
+     * channel.
+     */
+    static void write(File f, ByteBuffer[] srcs, long position) throws IOException {
+        unforced.add(f.getAbsoluteFile());
+        withChannel(f, channel -> {
+            ByteBuffer[] bufs = new ByteBuffer[srcs.length];
+            for (int i = 0; i < srcs.length; i++)
+                bufs[i] = srcs[i].duplicate();
+            synchronized (channel) {
+                channel.position(position);
+                while (bufs[bufs.length - 1].hasRemaining())
+                    channel.write(bufs);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Append src to the end of f.
+     *
+     * @return the position src was written at
+     */
+    static long append(File f, ByteBuffer src) throws IOException {
+        unforced.add(f.getAbsoluteFile());
+        return withChannel(f, channel -> {
+            ByteBuffer buf = src.duplicate();
+            synchronized (channel) {
+                long position = channel.size();
+                while (buf.hasRemaining())
+                    channel.write(buf, position + buf.position() - src.position());
+                return position;
+            }
+        });
+    }
+
+    /**
+     * Map f read-only, up to the 2GB a single mapping can hold.  The
+     * mapping stays valid after the channel is closed, and shows later
+     * writes to f within its range.
+     */
+    static MappedByteBuffer map(File f) throws IOException {
+        return withChannel(f, channel -> channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                Math.min(channel.size(), Integer.MAX_VALUE)));
+    }
+
+    /** Force f to disk. */
+    static void force(File f) throws IOException {
+        unforced.remove(f.getAbsoluteFile());
+        withChannel(f, channel -> {
+            channel.force(false);
+            return null;
+        });
+    }
+
+    /**
+     * Force to disk every file written since it was last forced.  Files
+     * deleted meanwhile are skipped.
+     */
+    static void forceAll() throws IOException {
+        for (File f : unforced) {
+            // first, so that a write from now on marks f again
+            unforced.remove(f);
+            try {
+                withChannel(f, channel -> {
+                    channel.force(false);
+                    return null;
+                });
+            } catch (FileNotFoundException e) {
+                // deleted
+            }
+        }
+    }
+
+    /** @return true if f has been written since it was last forced */
+    static boolean isUnforced(File f) {
+        return unforced.contains(f.getAbsoluteFile());
+    }
+
+    /** Close the channel for f, if it is open. */
+    static void close(File f) {
+        synchronized (opening) {
+            Handle handle = channels.remove(f.getAbsoluteFile());
+            if (handle != null)
+                close(handle.channel);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+}
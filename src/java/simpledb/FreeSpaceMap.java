@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile are full, so that an
+ * insert goes straight to a page with a free slot instead of reading and
+ * locking every page before it.  The map is kept in side pages, in a file
+ * next to the HeapFile with ".fsm" appended to its name: like the slots of
+ * a BTreeHeaderPage, bit i of the map (bit i % 8 of byte i / 8) is set if
+ * page i of the table is full.  Pages past the end of the map, including
+ * every page of a table that has none yet, count as having space.
+ * <p>
+ * The map is a hint, written through but neither logged nor forced, and
+ * the HeapFile checks the page it is sent to.  A page wrongly marked as
+ * having space costs one extra page read; one wrongly marked full is
+ * skipped until a delete from it clears its bit.  So an abort puts back
+ * the bits of the pages it restores (see {@link HeapFile#pageRestored});
+ * only a crash that undoes an insert can leave a page wrongly full.
+ *
+ * @see HeapFile#insertTuple
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    /** Bytes per side page of the map; each covers 8 times as many pages. */
+    static final int PAGE_BYTES = 4096;
+
+    private static final int PAGE_BITS = PAGE_BYTES * 8;
+
+    private final File file;
+
+    /** Full pages of the table, read from the file on first use. */
+    private BitSet full;
+
+    /** No page before this one has space; guarded by this. */
+    private int firstFree = 0;
+
+    /**
+     * @param heapFile the file of the HeapFile whose pages are mapped
+     */
+    FreeSpaceMap(File heapFile) {
+        this.file = sideFile(heapFile);
+    }
+
+    /** @return the file the map of heapFile is kept in */
+    static File sideFile(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Throw away the map of heapFile, whose contents are being replaced.
+     */
+    static void delete(File heapFile) {
+        File side = sideFile(heapFile);
+        FileHandleCache.close(side);
+        side.delete();
+    }
+
+    /**
+     * @param from the first page to consider
+     * @param numPages the number of pages in the table
+     * @return the first page from from on that is not known to be full, or
+     * -1 if there is none
+     */
+    synchronized int nextFree(int from, int numPages) throws IOException {
+        load();
+        int start = Math.max(from, firstFree);
+        int page = full.nextClearBit(start);
+        if (start == firstFree)
+            // everything before page is full
+            firstFree = page;
+        return page < numPages ? page : -1;
+    }
+
+    /**
+     * Note whether a page is full, writing out the side page holding its
+     * bit if that changed.
+     */
+    synchronized void setFull(int pageNo, boolean isFull) throws IOException {
+        load();
+        if (!isFull && pageNo < firstFree)
+            firstFree = pageNo;
+        if (full.get(pageNo) == isFull)
+            return;
+        full.set(pageNo, isFull);
+        int sidePage = pageNo / PAGE_BITS;
+        byte[] bits = full.get(sidePage * PAGE_BITS, (sidePage + 1) * PAGE_BITS).toByteArray();
+        if (!file.exists())
+            file.createNewFile();
+        FileHandleCache.write(file, ByteBuffer.wrap(Arrays.copyOf(bits, PAGE_BYTES)),
+                              (long) sidePage * PAGE_BYTES);
+    }
+
+    private void load() throws IOException {
+        if (full != null)
+            return;
+        if (!file.exists()) {
+            full = new BitSet();
+            return;
+        }
+        byte[] bits = new byte[(int) file.length()];
+        FileHandleCache.read(file, ByteBuffer.wrap(bits), 0);
+        full = BitSet.valueOf(bits);
+    }
+}
@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GroupCommit makes the log durable for committing transactions in
+ * batches.  A committer appends its COMMIT record to the log buffer and
+ * then parks in {@link #await} until the log is on disk up to the LSN
+ * past that record; a single flusher thread writes out every record
+ * buffered meanwhile in one write, forces the log once, then wakes all the
+ * committers it covered.  Commit throughput is therefore no longer bounded
+ * by the rate of fsyncs the disk can do.
+ * <p>
+ * The flusher may wait up to a maximum batch delay, in microseconds, after
+ * the first committer of a batch arrives, so that more can join it.  The
+ * delay is set by the simpledb.GroupCommitDelayUs system property and
+ * defaults to 0, which only batches committers that arrive while the
+ * previous force is running.  The flusher thread exits when idle and is
+ * started again by the next committer.
+ * <p>
+ * If a force fails, only the committers of its batch are told; those that
+ * arrive later wait for a force of their own.
+ *
+ * @see LogFile#logCommit
+ * @Threadsafe
+ */
+class GroupCommit implements Runnable {
+
+    /** Name of the system property that sets the maximum batch delay. */
+    public static final String DELAY_PROPERTY = "simpledb.GroupCommitDelayUs";
+
+    /** How long the flusher waits for work before it exits. */
+    private static final long IDLE_MS = 1000;
+
+    private final LogFile log;
+    private final long delayUs;
+
+    /** LSN up to which the log is on disk; guarded by this. */
+    private long durable = 0;
+
+    /** Committers that one force of the log is to release. */
+    private static class Batch {
+        /** Highest LSN a committer of the batch waits for. */
+        long target = 0;
+        /** Why the force failed, if it did. */
+        IOException failure;
+    }
+
+    /** The batch arriving committers join; guarded by this. */
+    private Batch open = new Batch();
+
+    /** Number of forces done by the flusher; guarded by this. */
+    private int flushes = 0;
+
+    /** The flusher, or null if it is not running; guarded by this. */
+    private Thread flusher;
+
+    /**
+     * @param log the log to force
+     * @param delayUs the maximum time to hold a batch open, in microseconds
+     */
+    GroupCommit(LogFile log, long delayUs) {
+        this.log = log;
+        this.delayUs = delayUs;
+    }
+
+    /** @return true if the log is on disk at least up to lsn */
+    synchronized boolean isDurable(long lsn) {
+        return lsn <= durable;
+    }
+
+    /** @return the LSN up to which the log is on disk */
+    synchronized long durable() {
+        return durable;
+    }
+
+    /**
+     * Block until the log is on disk at least up to lsn.
+     *
+     * @throws IOException if the force that was to cover lsn failed
+     */
+    synchronized void await(long lsn) throws IOException {
+        if (lsn <= durable)
+            return;
+        Batch batch = open;
+        batch.target = Math.max(batch.target, lsn);
+        if (flusher == null) {
+            flusher = new Thread(this, "simpledb-group-commit");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        notifyAll();
+        boolean interrupted = false;
+        while (durable < lsn) {
+            if (batch.failure != null)
+                throw batch.failure;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the commit record is written; it has to become durable
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Note that the log was forced by someone else up to lsn, which
+     * releases the committers waiting for no more than that.
+     */
+    synchronized void forced(long lsn) {
+        if (lsn > durable) {
+            durable = lsn;
+            notifyAll();
+        }
+    }
+
+    /** @return the number of times the flusher forced the log */
+    synchronized int flushes() {
+        return flushes;
+    }
+
+    public void run() {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                if (open.target <= durable) {
+                    try {
+                        wait(IDLE_MS);
+                    } catch (InterruptedException e) {
+                        flusher = null;
+                        return;
+                    }
+                    if (open.target <= durable) {
+                        flusher = null;
+                        return;
+                    }
+                }
+            }
+            if (delayUs > 0) {
+                // hold the batch open for late committers
+                try {
+                    TimeUnit.MICROSECONDS.sleep(delayUs);
+                } catch (InterruptedException e) {
+                    // force what we have
+                }
+            }
+            synchronized (this) {
+                // committers arriving from now on wait for the next force
+                batch = open;
+                open = new Batch();
+            }
+            // every waiter appended its record before asking, so one write
+            // and force covers them all
+            long end = -1;
+            IOException error = null;
+            try {
+                end = log.writeAndForce();
+            } catch (IOException e) {
+                // writing or forcing the log failed; this batch's records
+                // may not be on disk, so its committers must not return
+                error = e;
+            }
+            synchronized (this) {
+                flushes++;
+                if (error == null)
+                    durable = Math.max(durable, end);
+                else if (durable < batch.target)
+                    batch.failure = error;
+                notifyAll();
+            }
+        }
+    }
+}
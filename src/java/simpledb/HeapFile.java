@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -18,12 +19,16 @@ public class HeapFile implements DbFile {
 	private File f;
 	private int tableId;
 	private TupleDesc td;
+	private final MappedFile mapped;
+	private final FreeSpaceMap freeSpace;
 	
 	private class HeapFileIterator implements DbFileIterator {
 
 		private TransactionId tid;
 		private Iterator<Tuple> it;
 		private int currPageNo;
+		private ReadAhead readAhead;
+		private BufferRing ring;
 		
 		public HeapFileIterator(TransactionId tid) {
 			this.tid = tid;
@@ -35,8 +40,13 @@ public class HeapFile implements DbFile {
 		public void open() throws DbException, TransactionAbortedException {
 			// TODO Auto-generated method stub
 			currPageNo = 0;
+			// tables bigger than the pool are scanned through a ring
+			BufferPool bp = Database.getBufferPool();
+			ring = BufferRing.forScan(bp, numPages());
+			readAhead = new ReadAhead(bp, getId(), ring);
+			readAhead.pageRequested(currPageNo, numPages());
 			HeapPageId heapPageID = new HeapPageId(getId(), currPageNo);
-			HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, heapPageID, Permissions.READ_ONLY);
+			HeapPage heapPage = (HeapPage) bp.getPage(tid, heapPageID, Permissions.READ_ONLY, ring);
 			it = heapPage.iterator();
 		}
 
@@ -51,8 +61,9 @@ public class HeapFile implements DbFile {
 			
 			if(currPageNo + 1 < numPages()) {
 				currPageNo++;
+				readAhead.pageRequested(currPageNo, numPages());
 				HeapPageId heapPageID = new HeapPageId(getId(), currPageNo);
-				HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, heapPageID, Permissions.READ_ONLY);
+				HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, heapPageID, Permissions.READ_ONLY, ring);
 				it = heapPage.iterator();
 				return it.hasNext();
 			}
@@ -81,6 +92,8 @@ public class HeapFile implements DbFile {
 			// TODO Auto-generated method stub
 			currPageNo= -1;
 			it = null;
+			readAhead = null;
+			ring = null;
 		}
 		
 	}
@@ -93,10 +106,34 @@ public class HeapFile implements DbFile {
      * @throws FileNotFoundException 
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally
+     * reading its pages from a memory mapping of the file.  Mapping suits
+     * read-mostly tables: pages are read without a system call or a copy.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mmap whether to read pages through a memory mapping
+     * @see MappedFile
+     */
+    public HeapFile(File f, TupleDesc td, boolean mmap) {
         // some code goes here
     	this.f = f;
     	this.td = td;
     	this.tableId = getId();
+    	this.mapped = mmap ? new MappedFile(f) : null;
+    	this.freeSpace = new FreeSpaceMap(f);
+    }
+
+    /**
+     * @return true if this file reads its pages through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return mapped != null;
     }
 
     /**
@@ -138,13 +175,15 @@ public class HeapFile implements DbFile {
     	
     	try {
     		int pageSize = Database.getBufferPool().getPageSize();
-    		int offset = pid.pageNumber() * pageSize;
-			RandomAccessFile randomAccessFile = new RandomAccessFile(f, "r");
-			randomAccessFile.seek(offset);
+    		long offset = (long) pid.pageNumber() * pageSize;
+    		if (mapped != null) {
+    			ByteBuffer slice = mapped.slice(offset, pageSize);
+    			if (slice != null)
+    				return new HeapPage((HeapPageId) pid, slice);
+    		}
 			byte[] byteData = HeapPage.createEmptyPageData();
 			
-			randomAccessFile.read(byteData);
-			randomAccessFile.close();
+			FileHandleCache.read(f, ByteBuffer.wrap(byteData), offset);
 			
 			return new HeapPage((HeapPageId) pid, byteData);
 		} catch (IOException e) {
@@ -155,6 +194,25 @@ public class HeapFile implements DbFile {
     	return null;
     }
 
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        // a mapped page needs no frame of its own
+        if (frame == null || mapped != null)
+            return readPage(pid);
+        try {
+            long offset = (long) pid.pageNumber() * BufferPool.getPageSize();
+            ByteBuffer dst = frame.duplicate();
+            dst.position(FileHandleCache.read(f, frame, offset));
+            // like readPage, a short read past the end leaves the rest empty
+            while (dst.hasRemaining())
+                dst.put((byte) 0);
+            return new HeapPage((HeapPageId) pid, frame);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
     	 
@@ -164,11 +222,13 @@ public class HeapFile implements DbFile {
         
         int pageSize = Database.getBufferPool().getPageSize();
 
-        RandomAccessFile dbFile = new RandomAccessFile(this.f, "rw");
-        dbFile.skipBytes(pageNumber * pageSize);
         byte[] pageData = page.getPageData();
-        dbFile.write(pageData);
-        dbFile.close();
+        FileHandleCache.write(this.f, ByteBuffer.wrap(pageData), (long) pageNumber * pageSize);
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        PageRunWriter.write(f, pages, 0);
     }
 
     /**
@@ -181,44 +241,63 @@ public class HeapFile implements DbFile {
     	return fileLength/pageSize;
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * Add a tuple to the first page that has space for it, which the
+     * free space map finds without reading the full pages before it, or
+     * to a new page at the end of the file if there is none.  A new page
+     * is appended empty and filled through the buffer pool like any
+     * other, so that the insert is logged before it reaches disk.
+     *
+     * @see FreeSpaceMap
+     */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
     	
-        ArrayList pagesChanged = new ArrayList();
-        int i = 0;
-        HeapPageId pid;
-        HeapPage page = null;
-                
-        while(i < numPages()) {
-        	pid = new HeapPageId(this.getId(), i);
-            page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-
-        	if(page.getNumEmptySlots() > 0){
-        		break;
-        	}
-        	i++;
-        }
-        //
-        if(i < numPages()) {
-            try {
-                page.insertTuple(t);
+        ArrayList<Page> pagesChanged = new ArrayList<Page>();
+        int numPages = numPages();
+        int i = freeSpace.nextFree(0, numPages);
+        while (true) {
+            if (i < 0) {
+                i = numPages;
+                appendEmptyPage(i);
+            }
+            HeapPageId pid = new HeapPageId(this.getId(), i);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+
+            if (page.getNumEmptySlots() > 0) {
+                try {
+                    page.insertTuple(t);
+                } catch (Exception e) {
+                    throw new DbException("Tuple can not be inserted");
+                }
+                freeSpace.setFull(i, page.getNumEmptySlots() == 0);
                 pagesChanged.add(page);
                 return pagesChanged;
-            } catch (Exception e){
-                throw new DbException("Tuple can not be inserted");
             }
-        } else {
-        	HeapPageId newPageId = new HeapPageId(this.getId(), numPages());
-            HeapPage newPage = new HeapPage(newPageId, HeapPage.createEmptyPageData());
-            
-            newPage.insertTuple(t);
-            
-            this.writePage(newPage);
-            
-            pagesChanged.add(newPage);
-            return pagesChanged;
-        } 
+            // the map was out of date, or another transaction filled the
+            // page appended
+            freeSpace.setFull(i, true);
+            numPages = numPages();
+            i = freeSpace.nextFree(i + 1, numPages);
+        }
+    }
+
+    /**
+     * Write an empty page numbered pageNo at the end of the file, unless
+     * another insert has appended it already.
+     */
+    private synchronized void appendEmptyPage(int pageNo) throws IOException {
+        if (numPages() == pageNo)
+            writePage(new HeapPage(new HeapPageId(getId(), pageNo), HeapPage.createEmptyPageData()));
+    }
+
+    /**
+     * Note in the free space map whether page, a committed version put
+     * back by an abort, is full; the aborted inserts may have marked it
+     * full.
+     */
+    void pageRestored(HeapPage page) throws IOException {
+        freeSpace.setFull(page.getId().pageNumber(), page.getNumEmptySlots() == 0);
     }
 
     // see DbFile.java for javadocs
@@ -236,6 +315,12 @@ public class HeapFile implements DbFile {
             
         page.deleteTuple(t);
         pagesChanged.add(page);
+        try {
+            freeSpace.setFull(pageId.pageNumber(), false);
+        } catch (IOException e) {
+            // only a hint; the page is still found by a later delete
+            Debug.log("HeapFile: could not update free space map: %s", e);
+        }
         
         return pagesChanged;
     }
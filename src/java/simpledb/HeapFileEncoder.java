@@ -91,6 +91,9 @@ public class HeapFileEncoder {
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
 
+      // a map of the pages of an earlier file would be wrong
+      FreeSpaceMap.delete(outFile);
+
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
@@ -2,16 +2,22 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tuples are not deserialized up front: a used slot whose entry in tuples
+ * is null is decoded from the buffer the page was read from each time it
+ * is asked for, so a page read into an off-heap slab keeps its contents
+ * there.  Only tuples inserted since the page was read live on the heap.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlabPage {
 
 	private TransactionId dirtier;
 	private boolean dirty;
@@ -21,6 +27,10 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
+    /** The bytes this page was read from; never written.  Guarded by this. */
+    private ByteBuffer data;
+
+    /** Before image, or null if it is still the contents of data. */
     byte[] oldData;
     private final Byte oldDataLock = new Byte((byte)0);
     
@@ -52,7 +62,7 @@ public class HeapPage implements Page {
 			// always return a valid tuple when this is called
 			Tuple tuple = null;
 			if (nextValidIndx != -1) {
-				tuple = tuples[nextValidIndx];
+				tuple = getTuple(nextValidIndx);
 				//indx = nextValidIndx;
 				nextValidIndx = getNextValidIndex(nextValidIndx+1);
 			}
@@ -78,27 +88,30 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage over a buffer holding one page in the format
+     * described above, positioned at 0.  Only the header is copied; tuples
+     * are decoded from data as they are read, so data must not change
+     * until {@link #releaseSlab} is called.  A read-only buffer is taken
+     * to be a mapping of the file, which changes when the page is
+     * written; the page keeps its before image in a copy of its own from
+     * the first time it is dirtied.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+            header[i] = data.get(i);
 
-        setBeforeImage();
+        tuples = new Tuple[numSlots];
+        this.data = data;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -132,6 +145,8 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null)
+                oldDataRef = readData();
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -141,6 +156,22 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * Copy the before image out of data if data is a mapping of the file,
+     * which writing this page out would change.
+     */
+    private void keepBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null && readsMapping())
+            oldData = readData();
+        }
+    }
+
+    private synchronized boolean readsMapping() {
+        return data.isReadOnly();
+    }
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
@@ -156,40 +187,57 @@ public class HeapPage implements Page {
     return this.pid;
     }
 
+    /** @return the offset of slot i in the page data */
+    private int slotOffset(int i) {
+        return header.length + i * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in slot i, decoding it from the page data if it has
+     *   not been replaced since the page was read, or null if the slot is
+     *   empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple getTuple(int i) {
+        if (!isSlotUsed(i))
             return null;
-        }
+        Tuple t = tuples[i];
+        return t != null ? t : readTuple(i);
+    }
 
-        // read fields in the tuple
+    /**
+     * Decode the tuple in slot i from the page data.
+     */
+    private synchronized Tuple readTuple(int slotId) {
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(data, offset));
+            offset += type.getLen();
         }
-
         return t;
     }
 
+    /** @return a heap copy of the bytes this page was read from */
+    private synchronized byte[] readData() {
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        ByteBuffer view = data.duplicate();
+        view.position(0);
+        view.get(copy, 0, Math.min(copy.length, view.remaining()));
+        return copy;
+    }
+
+    // see SlabPage.java for javadocs
+    public synchronized boolean readsFrom(ByteBuffer buf) {
+        return data == buf;
+    }
+
+    // see SlabPage.java for javadocs
+    public synchronized void releaseSlab() {
+        data = ByteBuffer.wrap(readData());
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -232,6 +280,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // slot unchanged since the page was read: copy its bytes
+            if (tuples[i] == null) {
+                try {
+                    dos.write(slotBytes(i));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -262,6 +320,15 @@ public class HeapPage implements Page {
         return baos.toByteArray();
     }
 
+    /** @return a copy of the bytes of slot i in the page data */
+    private synchronized byte[] slotBytes(int i) {
+        byte[] bytes = new byte[td.getSize()];
+        ByteBuffer view = data.duplicate();
+        view.position(slotOffset(i));
+        view.get(bytes);
+        return bytes;
+    }
+
     /**
      * Static method to generate a byte array corresponding to an empty
      * HeapPage.
@@ -293,15 +360,12 @@ public class HeapPage implements Page {
     			
     			if(pid.equals(recordId.getPageId())) {
     				
-    				for(int i = 0; i< tuples.length; i++) {
-                        if(isSlotUsed(i) && recordId.equals(tuples[i].getRecordId())){
-                        	
-                            tuples[i] = null;
-                            markSlotUsed(i, false);
-                            return;
-                        }
-                        
-                    }
+    				int i = recordId.tupleno();
+    				if(i >= 0 && i < numSlots && isSlotUsed(i)) {
+    					tuples[i] = null;
+    					markSlotUsed(i, false);
+    					return;
+    				}
     			}
     			else {
     				throw new DbException("Page id do not match");
@@ -351,6 +415,7 @@ public class HeapPage implements Page {
      */
     public void markDirty(boolean dirty, TransactionId tid) {
     	if(dirty){
+    		keepBeforeImage();
     		this.dirty = true;
             this.dirtier = tid;
         } else {
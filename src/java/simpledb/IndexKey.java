@@ -0,0 +1,48 @@
+package simpledb;
+
+/**
+ * IndexKey names a key value of a B+ tree for key-range locking.  A lock
+ * on a key also covers the gap below it, down to the next smaller key in
+ * the index; the supremum, a key above every other, covers the gap at the
+ * end of the index.
+ *
+ * @see BTreeKeyLocks
+ */
+final class IndexKey {
+
+    private final int tableId;
+    /** The key value, or null for the supremum. */
+    private final Field key;
+
+    /**
+     * @param tableId the id of the B+ tree file
+     * @param key the key value, or null for the supremum
+     */
+    IndexKey(int tableId, Field key) {
+        this.tableId = tableId;
+        this.key = key;
+    }
+
+    int getTableId() {
+        return tableId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IndexKey))
+            return false;
+        IndexKey other = (IndexKey) o;
+        return tableId == other.tableId
+            && (key == null || other.key == null ? key == other.key : key.equals(other.key));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * tableId + (key == null ? 0 : key.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return tableId + ":" + (key == null ? "+inf" : key.toString());
+    }
+}
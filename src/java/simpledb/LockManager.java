@@ -2,25 +2,342 @@ package simpledb;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LockManager grants locks under strict two phase locking, at two
+ * granularities: whole tables, which are locked in any {@link LockMode},
+ * and pages or B+ tree keys, which are locked in S or X mode.  Before
+ * locking a page or key a transaction takes the matching intention lock
+ * (IS or IX) on its table, unless a table lock it already holds covers
+ * it.
+ * <p>
+ * Once a transaction holds more than simpledb.LockEscalationPages page
+ * locks on one table, they are escalated: the transaction locks the whole
+ * table in S mode (or X mode, if it intends to write) and drops its page
+ * locks there, so that a large scan holds one lock rather than one per
+ * page.  Set the property to 0 to turn escalation off.
+ * <p>
+ * The lock table is a concurrent hash table from each locked table or page
+ * to its {@link LockState}.  Every lock is a {@link LockRequest} node,
+ * found through the LockState by transaction and, once granted, linked
+ * into its transaction's {@link TxnLocks} list, so looking a lock up and
+ * releasing it are constant time.  IS and S requests on an object nobody
+ * holds or wants in another mode are granted by a compare-and-set on the
+ * LockState, without taking its monitor.  A LockState nobody holds or
+ * wants is dropped from the table by the transaction that leaves it idle.
+ * <p>
+ * Other requests take the LockState's monitor and, if they conflict, join
+ * its FIFO queue and park on the monitor, using no CPU until a lock on the
+ * same object is released or they are chosen as a deadlock victim.  Before
+ * parking, a blocked transaction records what it waits for in a
+ * {@link WaitForGraph} and checks for a cycle through itself; it checks
+ * again every time it wakes, and at least every DEADLOCK_CHECK_MS, so
+ * cycles closed by a concurrent release are still found.
+ * <p>
+ * Detection can be replaced by one of the deadlock avoidance policies of
+ * {@link DeadlockPolicy}, named by the simpledb.DeadlockPolicy system
+ * property when the Database starts.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-    private final ConcurrentMap<PageId, Object> pageToLockMap;
-    
-    private final Map<PageId, Set<TransactionId>> shareLocksMap;
-    
-    private final Map<PageId, TransactionId> exclusiveLocksMap;
-    
-    private final Map<TransactionId, Set<PageId>> affectedPages;
-    
-    private final Map<TransactionId, PageId> intentionLock;
-    private static final LockManager instance = new LockManager();
-    
+
+    /** Name of the system property that sets the escalation threshold. */
+    public static final String ESCALATION_PROPERTY = "simpledb.LockEscalationPages";
+
+    private static final int ESCALATION_PAGES = Integer.getInteger(ESCALATION_PROPERTY, 1000);
+
+    /** Longest a blocked request parks before checking its state again. */
+    private static final long DEADLOCK_CHECK_MS = 100;
+
+    /**
+     * A lock held or wanted by one transaction on one table or page.  A
+     * waiting request is linked into its LockState's queue, a granted one
+     * into its transaction's TxnLocks.
+     */
+    private static class LockRequest {
+        final TransactionId tid;
+        final Object key;
+        final LockState lock;
+        final LockMode mode;
+        /** Granted by the fast path, and counted in lock.word. */
+        final boolean fast;
+
+        /** Queue links, guarded by lock's monitor. */
+        LockRequest qPrev, qNext;
+        /** Transaction list links, guarded by the TxnLocks' monitor. */
+        LockRequest txnPrev, txnNext;
+
+        LockRequest(TransactionId tid, Object key, LockState lock,
+                    LockMode mode, boolean fast) {
+            this.tid = tid;
+            this.key = key;
+            this.lock = lock;
+            this.mode = mode;
+            this.fast = fast;
+        }
+    }
+
+    /**
+     * Holders and waiters of the lock on one table or page.
+     * <p>
+     * word counts the locks granted by the fast path, plus the SLOW bit
+     * while any other lock is granted or any request is queued.  The fast
+     * path only grants while SLOW is clear, and every other request sets
+     * SLOW before it looks at the holders.  A fast path lock is counted
+     * just before it is added to granted and just after it is removed, so
+     * the slow path waits for the two to agree.
+     * <p>
+     * A word of 0 means nothing is held or wanted.  The state is then
+     * dropped from the lock table by setting RETIRED in place of the 0,
+     * after which neither path grants through it, and requests that find
+     * it look the key up again.
+     */
+    private static class LockState {
+        static final int SLOW = 1 << 30;
+        static final int RETIRED = 1 << 29;
+
+        final AtomicInteger word = new AtomicInteger();
+
+        /** Granted requests by transaction; fast ones change without the monitor. */
+        final ConcurrentHashMap<TransactionId, LockRequest> granted =
+            new ConcurrentHashMap<TransactionId, LockRequest>();
+
+        /** Granted requests that are not fast; guarded by the monitor. */
+        int slowGranted = 0;
+
+        /** FIFO queue of waiting requests; guarded by the monitor. */
+        LockRequest head, tail;
+
+        /**
+         * Grant an IS or S request without the monitor, if no other lock
+         * is held or wanted.
+         *
+         * @return the granted request, or null if the slow path must be taken
+         */
+        LockRequest tryFast(TransactionId tid, Object key, LockMode mode) {
+            if (mode != LockMode.IS && mode != LockMode.S)
+                return null;
+            int w = word.get();
+            while ((w & (SLOW | RETIRED)) == 0) {
+                if (word.compareAndSet(w, w + 1)) {
+                    LockRequest r = new LockRequest(tid, key, this, mode, true);
+                    granted.put(tid, r);
+                    return r;
+                }
+                w = word.get();
+            }
+            return null;
+        }
+
+        /**
+         * Close the fast path.  Caller holds the monitor.
+         *
+         * @return false if the state was retired, and must not be used
+         */
+        boolean setSlow() {
+            return (word.getAndUpdate(w -> w | SLOW) & RETIRED) == 0;
+        }
+
+        /**
+         * Retire the state if nothing is held or wanted.  SLOW is set
+         * while a slow lock is granted or a request is queued, so a word
+         * of 0 covers those as well as the fast path locks.
+         *
+         * @return true if the state is now retired
+         */
+        boolean retire() {
+            return word.compareAndSet(0, RETIRED);
+        }
+
+        /** @return true if the state was dropped from the lock table */
+        boolean retired() {
+            return (word.get() & RETIRED) != 0;
+        }
+
+        /** Reopen the fast path if nothing else is held or wanted.  Caller holds the monitor. */
+        void clearSlowIfIdle() {
+            if (slowGranted == 0 && head == null)
+                word.getAndUpdate(w -> w & ~SLOW);
+        }
+
+        /**
+         * @return false while a fast path lock is counted in word but not
+         *   in granted, having just been granted or released
+         */
+        boolean settled() {
+            int fast = 0;
+            for (LockRequest h : granted.values())
+                if (h.fast)
+                    fast++;
+            return (word.get() & ~SLOW) == fast;
+        }
+
+        /**
+         * Queue a request for mode, combined with any mode tid already
+         * holds.  Upgrades go ahead of everything but other upgrades, as
+         * the upgrader already blocks later conflicting requests.  Caller
+         * holds the monitor and has set SLOW.
+         */
+        LockRequest enqueue(TransactionId tid, Object key, LockMode mode) {
+            LockRequest held = granted.get(tid);
+            LockRequest r = new LockRequest(tid, key, this,
+                held == null ? mode : held.mode.combine(mode), false);
+            LockRequest after = tail;
+            if (held != null) {
+                after = null;
+                for (LockRequest q = head; q != null && granted.containsKey(q.tid); q = q.qNext)
+                    after = q;
+            }
+            r.qPrev = after;
+            r.qNext = after == null ? head : after.qNext;
+            if (r.qPrev == null) head = r; else r.qPrev.qNext = r;
+            if (r.qNext == null) tail = r; else r.qNext.qPrev = r;
+            return r;
+        }
+
+        /** Unlink a waiting request.  Caller holds the monitor. */
+        void dequeue(LockRequest r) {
+            if (r.qPrev == null) head = r.qNext; else r.qPrev.qNext = r.qNext;
+            if (r.qNext == null) tail = r.qPrev; else r.qNext.qPrev = r.qPrev;
+            r.qPrev = r.qNext = null;
+        }
+
+        /**
+         * @return the transactions r has to wait for: conflicting holders,
+         *   and conflicting requests queued ahead of it; empty if r can be
+         *   granted once settled.  Caller holds the monitor.
+         */
+        Set<TransactionId> blockers(LockRequest r) {
+            Set<TransactionId> blockers = conflicts(r.tid, r.mode);
+            for (LockRequest ahead = head; ahead != null && ahead != r; ahead = ahead.qNext) {
+                if (!ahead.mode.compatible(r.mode) && !ahead.tid.equals(r.tid))
+                    blockers.add(ahead.tid);
+            }
+            return blockers;
+        }
+
+        /**
+         * @return true if a request by another transaction whose mode
+         *   conflicts with mode is queued.  Caller holds the monitor.
+         */
+        boolean queuedConflict(TransactionId tid, LockMode mode) {
+            for (LockRequest q = head; q != null; q = q.qNext) {
+                if (!q.mode.compatible(mode) && !q.tid.equals(tid))
+                    return true;
+            }
+            return false;
+        }
+
+        /** @return the holders other than tid whose mode conflicts with mode */
+        Set<TransactionId> conflicts(TransactionId tid, LockMode mode) {
+            Set<TransactionId> conflicts = new HashSet<TransactionId>();
+            for (LockRequest h : granted.values()) {
+                if (!h.mode.compatible(mode) && !h.tid.equals(tid))
+                    conflicts.add(h.tid);
+            }
+            return conflicts;
+        }
+
+        /**
+         * Make a slow request a holder, replacing any lock its transaction
+         * held before.  Caller holds the monitor.
+         *
+         * @return the replaced request, or null
+         */
+        LockRequest grant(LockRequest r) {
+            LockRequest old = granted.put(r.tid, r);
+            slowGranted++;
+            if (old != null && old.fast)
+                word.decrementAndGet();
+            else if (old != null)
+                slowGranted--;
+            return old;
+        }
+    }
+
+    /**
+     * The locks one transaction holds, as a doubly linked list of granted
+     * requests, so they can be released without searching the lock table.
+     * Guarded by its own monitor.
+     */
+    private static class TxnLocks {
+        LockRequest head;
+        final Map<Integer, Integer> pagesPerTable = new HashMap<Integer, Integer>();
+
+        /** @return the number of pages of r's table now locked if r is a page lock, else 0 */
+        synchronized int link(LockRequest r) {
+            r.txnPrev = null;
+            r.txnNext = head;
+            if (head != null)
+                head.txnPrev = r;
+            head = r;
+            if (!(r.key instanceof PageId))
+                return 0;
+            return pagesPerTable.merge(((PageId) r.key).getTableId(), 1, Integer::sum);
+        }
+
+        synchronized void unlink(LockRequest r) {
+            if (r.txnPrev == null && head != r)
+                return; // not linked
+            if (r.txnPrev == null) head = r.txnNext; else r.txnPrev.txnNext = r.txnNext;
+            if (r.txnNext != null) r.txnNext.txnPrev = r.txnPrev;
+            r.txnPrev = r.txnNext = null;
+            if (r.key instanceof PageId)
+                pagesPerTable.merge(((PageId) r.key).getTableId(), -1, Integer::sum);
+        }
+
+        synchronized List<LockRequest> requests() {
+            ArrayList<LockRequest> all = new ArrayList<LockRequest>();
+            for (LockRequest r = head; r != null; r = r.txnNext)
+                all.add(r);
+            return all;
+        }
+    }
+
+    /**
+     * Lock state of every table, page and key locked or waited for, keyed
+     * by PageId for pages, by Integer table id for tables and by
+     * {@link IndexKey} for B+ tree keys.
+     */
+    private final ConcurrentMap<Object, LockState> lockTable;
+
+    private final ConcurrentMap<TransactionId, TxnLocks> txnLocks;
+
+    private final WaitForGraph waitsFor;
+
+    /** Page locks on one table a transaction may hold before escalation. */
+    private final int escalationPages;
+
+    private final DeadlockPolicy policy;
+
     private LockManager()
     {
-    	pageToLockMap = new ConcurrentHashMap<PageId, Object>();   
-        shareLocksMap = new HashMap<PageId, Set<TransactionId>>();   
-        exclusiveLocksMap = new HashMap<PageId, TransactionId>();   
-        affectedPages = new HashMap<TransactionId, Set<PageId>>(); 
-        intentionLock = new HashMap<TransactionId, PageId>();
+    	this(ESCALATION_PAGES, DeadlockPolicy.forName(System.getProperty(DeadlockPolicy.POLICY_PROPERTY)));
+    }
+
+    /**
+     * @param escalationPages the page locks on one table a transaction may
+     *   hold before they are escalated to a table lock, or 0 for no limit
+     */
+    LockManager(int escalationPages)
+    {
+    	this(escalationPages, DeadlockPolicy.DETECT);
+    }
+
+    /**
+     * @param escalationPages the page locks on one table a transaction may
+     *   hold before they are escalated to a table lock, or 0 for no limit
+     * @param policy what to do about requests that would wait
+     */
+    LockManager(int escalationPages, DeadlockPolicy policy)
+    {
+    	this.escalationPages = escalationPages;
+    	this.policy = policy;
+    	lockTable = new ConcurrentHashMap<Object, LockState>();
+        txnLocks = new ConcurrentHashMap<TransactionId, TxnLocks>();
+        waitsFor = new WaitForGraph();
     }
 
     //Return a singleton for the manager
@@ -28,209 +345,388 @@ public class LockManager {
     {
     	return new LockManager();
     }
-    
+
+    private TxnLocks locksOf(TransactionId tid) {
+    	TxnLocks locks = txnLocks.get(tid);
+    	if (locks != null)
+    		return locks;
+    	txnLocks.putIfAbsent(tid, new TxnLocks());
+    	return txnLocks.get(tid);
+    }
+
+    /**
+     * @return a new set of the pages tid holds page locks on; pages covered
+     *   by a table lock are not listed
+     */
     public Set<PageId> getAffectedPagesList(TransactionId tid) {
-    	if(affectedPages.containsKey(tid))
-    		return affectedPages.get(tid);
-    	
-    	affectedPages.put(tid, new HashSet<PageId>());
-		return affectedPages.get(tid);
-	}
-    
-    private Object getLockOfPage(PageId pageId) {
-    	if(pageToLockMap.containsKey(pageId))
-    		return pageToLockMap.get(pageId);
-    	
-    	pageToLockMap.put(pageId, new Object());
-		return pageToLockMap.get(pageId);
+    	TxnLocks locks = txnLocks.get(tid);
+    	if (locks == null)
+    		return Collections.<PageId>emptySet();
+    	Set<PageId> pages = new HashSet<PageId>();
+    	for (LockRequest r : locks.requests())
+    		if (r.key instanceof PageId)
+    			pages.add((PageId) r.key);
+    	return pages;
 	}
-    
-    private Set<TransactionId> getSharedLockList(PageId pageId) {
-		if(this.shareLocksMap.containsKey(pageId))
-			return shareLocksMap.get(pageId);
-		
-		shareLocksMap.put(pageId,new HashSet<TransactionId>());
-		return shareLocksMap.get(pageId);
+
+    /** @return the LockState of key, replacing a retired one */
+    private LockState getLockState(Object key) {
+    	LockState lock = lockTable.get(key);
+    	if (lock != null && !lock.retired())
+    		return lock;
+    	return lockTable.compute(key, (k, old) ->
+    		old == null || old.retired() ? new LockState() : old);
 	}
-    
+
+    /** Drop the LockState of key from the lock table if it is idle. */
+    private void retire(Object key, LockState lock) {
+    	if (lock.retire())
+    		lockTable.remove(key, lock);
+    }
+
+    /** @return the number of LockStates in the lock table */
+    int lockTableSize() {
+    	return lockTable.size();
+    }
+
+    /** @return the lock tid holds on key, or null */
+    private LockRequest heldLock(TransactionId tid, Object key) {
+    	LockState lock = lockTable.get(key);
+    	return lock == null ? null : lock.granted.get(tid);
+    }
+
+    /** @return the mode tid holds on the lock on key, or null */
+    private LockMode heldMode(TransactionId tid, Object key) {
+    	LockRequest held = heldLock(tid, key);
+    	return held == null ? null : held.mode;
+    }
+
+    /**
+     * Lock page pid for tid, first taking the intention lock on its table.
+     * May escalate tid's page locks on the table to a table lock.
+     */
     public void getLock(TransactionId tid, PageId pid, Permissions permission) throws TransactionAbortedException
     {
-        if(permission == Permissions.READ_ONLY)
-	        acquireSharedLock(tid,pid);
-        
-        else
-            acquireExclusiveLock(tid,pid);
+    	boolean write = permission != Permissions.READ_ONLY;
+    	Integer table = pid.getTableId();
+    	LockMode tableMode = heldMode(tid, table);
+    	if (tableMode != null && tableMode.covers(write ? LockMode.X : LockMode.S))
+    		return;
+
+    	acquire(tid, table, write ? LockMode.IX : LockMode.IS);
+    	int locked = acquire(tid, pid, write ? LockMode.X : LockMode.S);
+    	if (escalationPages > 0 && locked > escalationPages)
+    		escalate(tid, table);
     }
 
-    public void releaseAllLocksOfTransaction(TransactionId tid)
+    /**
+     * Replace tid's page locks on table with an S lock on the table, or an
+     * X lock if tid intends to write to it.
+     */
+    private void escalate(TransactionId tid, Integer table) throws TransactionAbortedException
     {
-    	Set<PageId> pageset = new HashSet<PageId>(getAffectedPagesList(tid)); 
-    	for(PageId pid: pageset)
-    	{
-    		releaseLock(tid,pid);
+    	LockMode intention = heldMode(tid, table);
+    	acquire(tid, table, intention == LockMode.IS ? LockMode.S : LockMode.X);
+    	for (LockRequest r : locksOf(tid).requests()) {
+    		if (r.key instanceof PageId && table.equals(((PageId) r.key).getTableId()))
+    			release(r);
     	}
     }
-    
-    private void removeXLockFromTransaction(PageId pid, TransactionId tid) {
-    	if(exclusiveLocksMap.get(pid) == null)
+
+    public void releaseAllLocksOfTransaction(TransactionId tid)
+    {
+    	waitsFor.forget(tid);
+    	TxnLocks locks = txnLocks.remove(tid);
+    	if (locks == null)
     		return;
-    	if(exclusiveLocksMap.get(pid).equals(tid))
-    		exclusiveLocksMap.put(pid, null);
-    }
-    
-    private void removeSLockFromTransaction(PageId pid, TransactionId tid) {
-    	Set<TransactionId> currentTransactions = getSharedLockList(pid);
-    	currentTransactions.remove(tid);
-    	this.shareLocksMap.put(pid, currentTransactions);
-    }
-    
-    private void removeAffectedPagesFromTransaction(PageId pid, TransactionId tid) {
-    	Set<PageId> currentPages = getAffectedPagesList(tid);
-    	currentPages.remove(pid);
-    	this.affectedPages.put(tid, currentPages);
-    }
-    
+    	for (LockRequest r : locks.requests())
+    		release(r);
+    }
+
+    /** Release tid's page lock on pid; any table lock is kept. */
     public void releaseLock(TransactionId tid, PageId pid)
     {
-    	Object lock = getLockOfPage(pid);
-        synchronized(lock)
-        {
-        	removeXLockFromTransaction(pid, tid);
-
-          
-        	removeSLockFromTransaction(pid, tid);
-            	
-        	removeAffectedPagesFromTransaction(pid, tid);
-        	return;
-        }
-    }
-    
-    private void updateAffectedPages(PageId pid, TransactionId tid) {
-    	Set<PageId> currentPages = getAffectedPagesList(tid);
-    	currentPages.add(pid);
-    	this.affectedPages.put(tid, currentPages);
+    	LockRequest held = heldLock(tid, pid);
+    	if (held != null)
+    		release(held);
     }
-    
-    private void updateSharedLockList(PageId pid, TransactionId tid) {
-    	Set<TransactionId> currentTransactions = getSharedLockList(pid);
-		currentTransactions.add(tid);
-		this.shareLocksMap.put(pid, currentTransactions);
+
+    /** Drop a granted request from its LockState and its transaction's list. */
+    private void release(LockRequest r)
+    {
+    	TxnLocks locks = txnLocks.get(r.tid);
+    	if (locks != null)
+    		locks.unlink(r);
+    	LockState lock = r.lock;
+    	if (r.fast) {
+    		if (!lock.granted.remove(r.tid, r))
+    			return;
+    		// waiters have closed the fast path, so only then is there
+    		// anyone to wake
+    		int w = lock.word.decrementAndGet();
+    		if ((w & LockState.SLOW) == 0) {
+    			if (w == 0)
+    				retire(r.key, lock);
+    			return;
+    		}
+    	}
+    	synchronized(lock)
+    	{
+    		if (!r.fast && lock.granted.remove(r.tid, r))
+    			lock.slowGranted--;
+    		lock.clearSlowIfIdle();
+    		lock.notifyAll();
+    	}
+    	retire(r.key, lock);
     }
+
     public void acquireSharedLock(TransactionId tid, PageId pid) throws TransactionAbortedException
     {
-    	Object lock = getLockOfPage(pid);
-
-    	intentionLock.put(tid, pid);
-    	deadlockTest(tid,pid,false);
-
-    	//Loop and wait for lock.
-        while(true)
-        {
-            synchronized(lock)
-            {
-            	
-            	//Check if there is no X lock holder for this page.
-            	
-            	if(exclusiveLocksMap.get(pid) == null) {
-
-            		updateSharedLockList(pid, tid);
-
-            		updateAffectedPages(pid, tid);
-                	                	
-                	intentionLock.remove(tid);
-                	return;
-            	}
-            	
-            	if(exclusiveLocksMap.get(pid) != null)
-            		if(!exclusiveLocksMap.get(pid).equals(tid))
-            			continue;
-            		else//Already has the X lock
-            		{
-
-            			intentionLock.remove(tid);
-            			return;
-            		}
-        			
-
-        		updateSharedLockList(pid, tid);
-
-
-        		updateAffectedPages(pid, tid);
-            	                	
-            	intentionLock.remove(tid);
-            	return;
-            }
-        }
+    	getLock(tid, pid, Permissions.READ_ONLY);
     }
 
     public void acquireExclusiveLock(TransactionId tid, PageId pid) throws TransactionAbortedException
     {
-    	Object lock = getLockOfPage(pid);
-    	intentionLock.put(tid, pid);
-    	deadlockTest(tid,pid,true);
-    	
-    	//Loop and wait for lock.
-    	while(true)
-        {
-            synchronized(lock)
-            {
-            	
-            	if(exclusiveLocksMap.get(pid) != null) {
-            		if(!exclusiveLocksMap.get(pid).equals(tid))
-            			continue;
-            		else
-            		{
-            			intentionLock.remove(tid);
-            			return;
-            		}
-            	}
-            	
-            	if(getSharedLockList(pid).isEmpty())
-            	{
-            		exclusiveLocksMap.put(pid, tid);
-
-            		updateAffectedPages(pid, tid);
-            		
-            		intentionLock.remove(tid);
-            		return;
-            	}
-            	
-            	else if(getSharedLockList(pid).size() == 1 & getSharedLockList(pid).iterator().next().equals(tid))
-            	{
-            		//update lock
-            		getSharedLockList(pid).clear();
-            		exclusiveLocksMap.put(pid, tid);
-            		
-            		updateAffectedPages(pid, tid);
-            		
-            		intentionLock.remove(tid);
-            		return;
-
-            	}    	
-            }
-        }
+    	getLock(tid, pid, Permissions.READ_WRITE);
     }
-    
-    public boolean doesItHaveLock(TransactionId tid, PageId pid)
+
+    /**
+     * Block until tid holds the lock on key in at least the given mode,
+     * parking on key's LockState while it waits.
+     *
+     * @param key a PageId, an Integer table id or an IndexKey
+     * @return if key is a page and tid was newly granted it, the number of
+     *   pages of its table tid now holds page locks on; otherwise 0
+     * @throws TransactionAbortedException if tid is chosen to break a
+     *   deadlock, or the thread is interrupted
+     */
+    private int acquire(TransactionId tid, Object key, LockMode mode)
+        throws TransactionAbortedException
+    {
+    	LockState lock;
+    	LockRequest request = null;
+    	while (request == null) {
+    		lock = getLockState(key);
+    		LockRequest held = lock.granted.get(tid);
+    		if (held != null && held.mode.covers(mode))
+    			return 0;
+    		if (waitsFor.isVictim(tid))
+    			throw new TransactionAbortedException();
+    		if (held == null) {
+    			LockRequest fast = lock.tryFast(tid, key, mode);
+    			if (fast != null)
+    				return locksOf(tid).link(fast);
+    		}
+    		synchronized(lock)
+    		{
+    			// else it was retired meanwhile; look it up again
+    			if (lock.setSlow())
+    				request = lock.enqueue(tid, key, mode);
+    		}
+    	}
+    	lock = request.lock;
+
+    	LockRequest replaced = null;
+    	boolean granted = false;
+    	long start = System.currentTimeMillis();
+    	try {
+    		boolean checked = !policy.detects();
+    		while (true) {
+    			List<Object> wake = null;
+    			synchronized(lock)
+    			{
+    				if (waitsFor.isVictim(tid))
+    					throw new TransactionAbortedException();
+    				Set<TransactionId> blockers = lock.blockers(request);
+    				if (blockers.isEmpty()) {
+    					if (lock.settled()) {
+    						lock.dequeue(request);
+    						replaced = lock.grant(request);
+    						granted = true;
+    						break;
+    					}
+    				} else {
+    					if (policy.dies(tid, blockers, System.currentTimeMillis() - start))
+    						throw new TransactionAbortedException();
+    					waitsFor.waitFor(tid, blockers, lock);
+    					wake = waitsFor.wound(policy.wounds(tid, blockers));
+    					if (checked && wake.isEmpty()) {
+    						lock.wait(DEADLOCK_CHECK_MS);
+    						checked = !policy.detects();
+    						continue;
+    					}
+    				}
+    			}
+    			if (wake == null) {
+    				// a fast path grant or release is half done
+    				Thread.yield();
+    				continue;
+    			}
+    			// look for a cycle holding no LockState monitor, since waking
+    			// a victim takes the monitor it is parked on
+    			if (!checked) {
+    				checked = true;
+    				Object victim = waitsFor.breakCycle(tid);
+    				if (victim != null)
+    					wake.add(victim);
+    			}
+    			for (Object victim : wake) {
+    				synchronized(victim)
+    				{
+    					victim.notifyAll();
+    				}
+    			}
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new TransactionAbortedException();
+    	} finally {
+    		// also runs if the thread is stopped while parked
+    		waitsFor.stopWaiting(tid);
+    		if (!granted) {
+    			synchronized(lock)
+    			{
+    				lock.dequeue(request);
+    				lock.clearSlowIfIdle();
+    				lock.notifyAll();
+    			}
+    			retire(key, lock);
+    		}
+    	}
+    	TxnLocks locks = locksOf(tid);
+    	if (replaced == null)
+    		return locks.link(request);
+    	locks.unlink(replaced);
+    	locks.link(request);
+    	return 0;
+    }
+
+    /**
+     * Grant tid the lock on key in mode only if that needs no waiting,
+     * and would not jump ahead of a conflicting queued request.
+     *
+     * @return true if tid now holds the lock
+     */
+    private boolean tryAcquire(TransactionId tid, Object key, LockMode mode)
+    {
+    	LockRequest request = null;
+    	LockRequest replaced = null;
+    	while (request == null) {
+    		LockState lock = getLockState(key);
+    		LockRequest held = lock.granted.get(tid);
+    		if (held != null && held.mode.covers(mode))
+    			return true;
+    		if (held == null)
+    			request = lock.tryFast(tid, key, mode);
+    		if (request != null)
+    			break;
+    		synchronized(lock)
+    		{
+    			if (!lock.setSlow())
+    				// retired meanwhile; look it up again
+    				continue;
+    			LockMode wanted = held == null ? mode : held.mode.combine(mode);
+    			if (!lock.conflicts(tid, wanted).isEmpty() || lock.queuedConflict(tid, wanted)
+    				|| !lock.settled()) {
+    				lock.clearSlowIfIdle();
+    				retire(key, lock);
+    				return false;
+    			}
+    			request = new LockRequest(tid, key, lock, wanted, false);
+    			replaced = lock.grant(request);
+    		}
+    	}
+    	TxnLocks locks = locksOf(tid);
+    	if (replaced != null)
+    		locks.unlink(replaced);
+    	locks.link(request);
+    	return true;
+    }
+
+    /**
+     * Grant tid a shared lock on pid, and an IS lock on its table, only if
+     * that needs no waiting.
+     *
+     * @return true if tid now holds a lock on pid
+     */
+    public boolean tryAcquireSharedLock(TransactionId tid, PageId pid)
     {
-    	return getAffectedPagesList(tid).contains(pid);
+    	return tryAcquire(tid, pid.getTableId(), LockMode.IS)
+    		&& tryAcquire(tid, pid, LockMode.S);
     }
-    
-    public void deadlockTest(TransactionId tid, PageId pid, boolean ifExclusive) throws TransactionAbortedException
+
+    /**
+     * Lock a B+ tree key, and with it the gap below the key, for tid:
+     * shared to read, exclusive to write.  The matching intention lock on
+     * the key's table is taken first, unless a table lock tid holds
+     * already covers the key.
+     *
+     * @throws TransactionAbortedException if tid is chosen to break a deadlock
+     */
+    void getKeyLock(TransactionId tid, IndexKey key, Permissions perm)
+        throws TransactionAbortedException
+    {
+    	boolean write = perm != Permissions.READ_ONLY;
+    	Integer table = key.getTableId();
+    	LockMode tableMode = heldMode(tid, table);
+    	if (tableMode != null && tableMode.covers(write ? LockMode.X : LockMode.S))
+    		return;
+    	acquire(tid, table, write ? LockMode.IX : LockMode.IS);
+    	acquire(tid, key, write ? LockMode.X : LockMode.S);
+    }
+
+    /**
+     * Lock a B+ tree key for tid as {@link #getKeyLock} does, only if that
+     * needs no waiting.
+     *
+     * @return true if tid now holds the lock
+     */
+    boolean tryKeyLock(TransactionId tid, IndexKey key, Permissions perm)
+    {
+    	if (holdsKeyLock(tid, key, perm))
+    		return true;
+    	boolean write = perm != Permissions.READ_ONLY;
+    	return tryAcquire(tid, key.getTableId(), write ? LockMode.IX : LockMode.IS)
+    		&& tryAcquire(tid, key, write ? LockMode.X : LockMode.S);
+    }
+
+    /** @return true if tid holds key, or a lock on its table, in a mode covering perm */
+    boolean holdsKeyLock(TransactionId tid, IndexKey key, Permissions perm)
     {
+    	LockMode wanted = perm == Permissions.READ_ONLY ? LockMode.S : LockMode.X;
+    	LockMode tableMode = heldMode(tid, key.getTableId());
+    	if (tableMode != null && tableMode.covers(wanted))
+    		return true;
+    	LockMode keyMode = heldMode(tid, key);
+    	return keyMode != null && keyMode.covers(wanted);
+    }
 
-    	ArrayList<TransactionId> getSharedLockHolders = new ArrayList<TransactionId>(getSharedLockList(pid));
-    	
-    	//Add the exclusive lock holder too.
-    	if(exclusiveLocksMap.get(pid) != null)
-    		getSharedLockHolders.add(exclusiveLocksMap.get(pid));
+    /** Release tid's lock on a B+ tree key; any table lock is kept. */
+    void releaseKeyLock(TransactionId tid, IndexKey key)
+    {
+    	LockRequest held = heldLock(tid, key);
+    	if (held != null)
+    		release(held);
+    }
 
-    	for(TransactionId holder: getSharedLockHolders)
+    /** Return true if tid holds a lock on any table or page */
+    public boolean holdsLocks(TransactionId tid)
+    {
+    	TxnLocks locks = txnLocks.get(tid);
+    	if (locks == null)
+    		return false;
+    	synchronized(locks)
     	{
-    		if (tid.equals(holder))
-    			continue;
-    		if (getAffectedPagesList(tid).contains(intentionLock.get(holder)))
-    			throw new TransactionAbortedException();	
+    		return locks.head != null;
     	}
     }
-}
\ No newline at end of file
+
+    /** Return true if tid holds a page lock on pid, or a table lock covering it */
+    public boolean doesItHaveLock(TransactionId tid, PageId pid)
+    {
+    	if (heldLock(tid, pid) != null)
+    		return true;
+    	LockMode tableMode = heldMode(tid, pid.getTableId());
+    	return tableMode != null && tableMode.covers(LockMode.S);
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb;
+
+/**
+ * Lock modes for multi-granularity locking.  Pages are locked in S or X
+ * mode; tables are locked in any mode, the intention modes IS and IX
+ * announcing S and X locks on pages of the table, and SIX combining a
+ * share lock on the whole table with the intention to write some pages.
+ *
+ * @see LockManager
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    /** COMPATIBLE[a][b] is true if a and b may be held by different transactions. */
+    private static final boolean[][] COMPATIBLE = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /** @return true if other may be held by another transaction alongside this */
+    public boolean compatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return true if holding this mode grants everything other does */
+    public boolean covers(LockMode other) {
+        if (this == other || this == X || other == IS)
+            return true;
+        return this == SIX && (other == S || other == IX);
+    }
+
+    /** @return the weakest mode that grants both this and other */
+    public LockMode combine(LockMode other) {
+        if (covers(other))
+            return this;
+        if (other.covers(this))
+            return other;
+        return SIX; // S and IX
+    }
+}
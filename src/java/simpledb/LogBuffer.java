@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * LogBuffer holds log records that have been appended but not yet written
+ * to the log file.  Records are serialized into it with no system calls,
+ * and reach the file in one sequential write per flush rather than one
+ * per field.
+ * <p>
+ * Not thread safe; the {@link LogFile} guards it with its monitor.
+ */
+class LogBuffer extends ByteArrayOutputStream {
+
+    /** Size the buffer is written out at even if no one forces the log. */
+    static final int FLUSH_BYTES = 1 << 20;
+
+    LogBuffer() {
+        super(64 * 1024);
+    }
+
+    /** @return true if the buffer has grown big enough to be written out */
+    boolean isFull() {
+        return count >= FLUSH_BYTES;
+    }
+
+    /**
+     * Append the buffered bytes to the end of log and empty the buffer.
+     *
+     * @return the number of bytes written
+     */
+    int writeTo(LogSegments log) throws IOException {
+        int n = count;
+        if (n > 0) {
+            log.append(buf, 0, n);
+            reset();
+        }
+        return n;
+    }
+}
@@ -3,6 +3,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
 import java.lang.reflect.*;
 
 /**
@@ -35,46 +38,92 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is a manifest holding the offset of the last
+written checkpoint, or -1 if there are no checkpoints, the offset the
+log starts at and the size of its segments (see LogSegments).
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to it.  Offsets
+are positions in the concatenation of the segments, counted from the
+creation of the log, so they do not change when the log is truncated.
+Log records are variable length, and may span segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer offset representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, CLR and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  A page image starts with
+the one-byte code of its page class (see LogPageType) and of its page
+id class; logs from before these codes, which named both classes, are
+still read.
+
+<li> DELTA records are the compact form of UPDATE records, written
+whenever the before and after images are of the same size.  They consist
+of the page id, serialized like that of a page image, and the byte
+ranges in which the two images differ, with their old and new bytes (see
+PageDelta).  They are redone and undone by applying those bytes to the
+page image read from disk, or produced by the records before them.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset for each active transaction; then an
+integer count of dirty pages, and for each the page id, serialized as in
+DELTA records, and the long integer offset of the oldest record that may
+not be reflected on disk for it (its recLSN).
+
+<li> CLR (compensation) records are written when an update is undone,
+during rollback or recovery.  They consist of the page image that the
+undo installed, followed by the long integer offset of the UPDATE or
+DELTA record that was undone.  A CLR is redone like an update but never undone
+itself, so an undo that is interrupted by a crash picks up where it left
+off rather than undoing anything twice.
 
 </ul>
 
+<p> Records are appended to an in-memory {@link LogBuffer} rather than
+written field by field, and reach the segments when the log is forced,
+in one sequential write.  Each record is named by a log sequence number
+(LSN), which is its offset, so LSNs only ever grow while the database
+runs; truncating the log drops whole segments before the oldest LSN still
+needed, and copies nothing.  The buffer pool calls {@link #flushToLSN} before it writes a page, so that
+the page's log records are on disk first.
+
+<p> Recovery follows ARIES: an analysis pass finds the transactions that
+were running at the crash, starting from those listed in the last
+checkpoint; a redo pass repeats history, for every transaction, from the
+checkpoint or the oldest recLSN in its dirty page table, whichever is
+earlier; and an undo pass rolls back the losers, newest update
+first, logging a CLR for each update it undoes.  Pages carry no LSN in
+their on-disk formats, but as UPDATE and CLR records hold whole page
+images, and DELTA records set bytes to given values, their redo is
+idempotent, so every record from there on is simply replayed.  Redo is
+spread over several threads by page, see ParallelRedo.
+
+<p> Checkpoints are fuzzy: they write no pages, and only hold the monitor
+of this LogFile while they append their record.  Dirty pages reach disk
+through eviction and the BackgroundWriter, which moves the recLSNs, and
+with them the part of the log that is kept, forward.
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    final LogSegments segments; //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +131,30 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int DELTA_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // one-byte codes of page id classes (see writePageId); never 0
+    static final int HEAP_PAGE_ID = 1;
+    static final int BTREE_PAGE_ID = 2;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    // end of the records in the segments; those after it are in buffer
+    private long flushedOffset = -1;//protected by this
+    private final LogBuffer buffer = new LogBuffer();//protected by this
+    private final DataOutputStream out = new DataOutputStream(buffer);
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /** Forces the log for committing transactions in batches. */
+    private final GroupCommit groupCommit;
+
+    // written under this, but read without it by isRunning()
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,8 +169,9 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f);
         recoveryUndecided = true;
+        groupCommit = new GroupCommit(this, Long.getLong(GroupCommit.DELAY_PROPERTY, 0));
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,14 +191,27 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.clear();
+            currentOffset = segments.end();
+            flushedOffset = currentOffset;
         }
     }
 
+    /** Finish the record being appended to the buffer, which began at
+        offset start, with that offset.  Caller holds this. */
+    private void endRecord(long start) throws IOException {
+        out.writeLong(start);
+        currentOffset = flushedOffset + buffer.size();
+        if (buffer.isFull())
+            writeBuffer();
+    }
+
+    /** Write the buffered records to the segments, without forcing
+        them.  Caller holds this. */
+    private void writeBuffer() throws IOException {
+        flushedOffset += buffer.writeTo(segments);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,10 +235,9 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                endRecord(currentOffset);
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,36 +245,71 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with other
+        transactions committing at the same time (see GroupCommit), and
+        waited for without holding the monitor of this LogFile, so that
+        they can append their commit records meanwhile.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            endRecord(currentOffset);
+            end = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        groupCommit.await(end);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return the number of forces done for group commit */
+    int groupCommitFlushes() {
+        return groupCommit.flushes();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the images
+        are of the same size, as they are unless the page class changed,
+        a DELTA record of the bytes that differ is written instead.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see simpledb.Page#getBeforeImage
+        @see #flushToLSN
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
+        long start = currentOffset;
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        if (beforeData.length == afterData.length
+            && before.getClass() == after.getClass()) {
+            /* delta record consists of
+
+               record type
+               transaction id
+               page id (see writePageId)
+               changed byte ranges (see PageDelta)
+               start offset
+            */
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            writePageId(out, after.getId());
+            PageDelta.diff(beforeData, afterData).write(out);
+            endRecord(start);
+            return start;
+        }
         /* update record conists of
 
            record type
@@ -207,92 +318,168 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        endRecord(start);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return start;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
+    /** Write a page id as a one-byte code for its class, followed by
+        the values of its serialized integers.  Ids of other classes are
+        written as their class name, followed by the count and values of
+        their serialized integers. */
+    void writePageId(DataOutput out, PageId pid) throws IOException {
         int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
+        if (pid.getClass() == HeapPageId.class) {
+            out.writeByte(HEAP_PAGE_ID);
+        } else if (pid.getClass() == BTreePageId.class) {
+            out.writeByte(BTREE_PAGE_ID);
+        } else {
+            out.writeUTF(pid.getClass().getName());
+            out.writeInt(pageInfo.length);
+        }
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            out.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
+    /** Read a page id written by writePageId, or by a version that
+        named the classes of all ids. */
+    PageId readPageId(DataInput in) throws IOException {
+        int code = in.readUnsignedByte();
+        switch (code) {
+        case HEAP_PAGE_ID:
+            return new HeapPageId(in.readInt(), in.readInt());
+        case BTREE_PAGE_ID:
+            return new BTreePageId(in.readInt(), in.readInt(), in.readInt());
+        case 0:
+            break;
+        default:
+            throw new IOException("unknown page id type " + code);
+        }
+        String idClassName = readClassName(in);
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = in.readInt();
             Object idArgs[] = new Object[numIdArgs];
+            Class<?> idArgTypes[] = new Class<?>[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                idArgs[i] = in.readInt();
+                idArgTypes[i] = int.class;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return (PageId)idClass.getConstructor(idArgTypes).newInstance(idArgs);
+        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException
+                 | IllegalAccessException | InvocationTargetException e) {
+            throw new IOException("could not read page id of class " + idClassName
+                                  + ": " + e);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Read the rest of a class name written with writeUTF, whose first
+        byte, the high byte of its length, was 0 and has been read. */
+    private static String readClassName(DataInput in) throws IOException {
+        byte[] name = new byte[in.readUnsignedByte()];
+        in.readFully(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    void writePageData(DataOutput dos, Page p) throws IOException{
+        PageId pid = p.getId();
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        //page data is:
+        // page type code (see LogPageType), or page class name
+        // page id (see writePageId)
+        // page class bytes
+        // page class data
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        LogPageType type = LogPageType.of(p.getClass());
+        if (type != null)
+            dos.writeByte(type.code);
+        else
+            dos.writeUTF(p.getClass().getName());
+        writePageId(dos, pid);
+        byte[] pageData = p.getPageData();
+        dos.writeInt(pageData.length);
+        dos.write(pageData);
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    Page readPageData(DataInput in) throws IOException {
+        int code = in.readUnsignedByte();
+        LogPageType type = LogPageType.of(code);
+        String pageClassName = null;
+        if (code == 0)
+            pageClassName = readClassName(in);
+        else if (type == null)
+            throw new IOException("unknown page type " + code);
+        PageId pid = readPageId(in);
+
+        int pageSize = in.readInt();
+        byte[] pageData = new byte[pageSize];
+        in.readFully(pageData);
+
+        if (type != null)
+            return type.create(pid, pageData);
+        try {
+            return newPage(Class.forName(pageClassName), pid, pageData);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("could not read page image of class " + pageClassName
+                                  + ": " + e);
         }
-        return newPage;
+    }
 
+    /** @return a page of class pageClass with the given id and data,
+        created by its LogPageType if it has one */
+    Page newPage(Class<?> pageClass, PageId pid, byte[] pageData)
+        throws IOException {
+        LogPageType type = LogPageType.of(pageClass);
+        if (type != null)
+            return type.create(pid, pageData);
+        try {
+            try {
+                return (Page)pageClass.getConstructor(pid.getClass(), byte[].class)
+                    .newInstance(pid, pageData);
+            } catch (NoSuchMethodException e) {
+                // B+ tree pages that hold keys also take their file's key field
+                int keyField = ((BTreeFile) Database.getCatalog()
+                                .getDatabaseFile(pid.getTableId())).keyField();
+                return (Page)pageClass.getConstructor(pid.getClass(), byte[].class, int.class)
+                    .newInstance(pid, pageData, keyField);
+            }
+        } catch (NoSuchMethodException | InstantiationException
+                 | IllegalAccessException | InvocationTargetException e) {
+            throw new IOException("could not create page of class " + pageClass.getName()
+                                  + ": " + e);
+        }
+    }
+
+    /** Read a DELTA record's page id and delta, and undo the delta on
+        the latest image of the page: the one in pages, or else the one
+        on disk.  Redo applies deltas in ParallelRedo.
+
+        @return the changed page image
+    */
+    private Page undoDelta(Map<PageId,Page> pages)
+        throws IOException {
+        PageId pid = readPageId(segments);
+        PageDelta delta = PageDelta.read(segments);
+        Page base = pages.get(pid);
+        if (base == null)
+            base = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        byte[] data = base.getPageData();
+        return newPage(base.getClass(), pid, delta.undo(data));
+    }
+
+    /** @return true if tid has logged a BEGIN record, and no COMMIT or
+        ABORT record since, so that its updates can be rolled back from
+        the log.  Does not take the monitor of this LogFile. */
+    public boolean isRunning(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +494,109 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord(currentOffset);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record, listing the
+        running transactions and the dirty pages of the buffer pool with
+        their recLSNs, then truncate the log before the oldest record
+        either still needs.  No pages are written, and the buffer pool is
+        not locked, so transactions keep running meanwhile.  The data
+        files are forced before the log points at the new checkpoint, as
+        the pages written out before it are redone from no earlier. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long startCpOffset;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + segments.getFilePointer());
+            preAppend();
+            // pages are logged under this monitor, so the table holds
+            // every page with logged changes that may not be on disk
+            Map<PageId,Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+            startCpOffset = currentOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table, with recLSNs as file offsets;
+            // those truncated already have nothing left to redo before
+            // the checkpoint
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(Math.max(e.getValue(), segments.start()));
             }
+            endRecord(startCpOffset);
+            force();
+        }
+
+        // pages written before the dirty page table was taken are not in
+        // it; make them durable without holding up logging meanwhile
+        FileHandleCache.forceAll();
+
+        synchronized (this) {
+            //once the CP is written, make sure the CP location in the
+            // manifest is updated, unless a later checkpoint got there first
+            if (startCpOffset > segments.checkpoint())
+                segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption: the segments before the oldest record the last
+        checkpoint still needs are deleted, or archived (see
+        LogSegments). */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = segments.checkpoint();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
         long minLogRecord = cpLoc;
+        segments.seek(cpLoc);
+        int cpType = segments.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = segments.readLong();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        int numOutstanding = segments.readInt();
 
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = segments.readLong();
+            long firstLogRecord = segments.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // keep the records the redo of dirty pages starts from
+        int numDirty = segments.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(segments);
+            minLogRecord = Math.min(minLogRecord, segments.readLong());
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can truncate everything before minLogRecord
+        Debug.log("TRUNCATING LOG; NEW START: " + minLogRecord);
+        segments.truncate(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -460,16 +606,98 @@ public class LogFile {
         be enforced by this method.)
 
         @param tid The transaction to rollback
+        @throws NoSuchElementException if tid has no BEGIN record in the log
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId()
+                                                     + " is not running");
+                writeBuffer();
+                HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+                undo(Collections.singletonMap(tid.getId(), first), pages);
+                installPages(pages);
             }
         }
     }
 
+    /** Undo the updates of some transactions, newest first, logging a
+        CLR for each update undone.  Updates that a CLR shows were
+        undone already, before a crash, are skipped.  Caller holds the
+        monitor of this LogFile, and has written out the buffer.
+
+        @param firstRecords the offset of the first log record of each
+        transaction to undo, by transaction id
+        @param pages the page images to install, which the before images
+        of the undone updates are added to
+    */
+    private void undo(Map<Long,Long> firstRecords, Map<PageId,Page> pages)
+        throws IOException {
+        if (firstRecords.isEmpty())
+            return;
+        long stop = Collections.min(firstRecords.values());
+        // the earliest update of each transaction that a CLR undid
+        HashMap<Long,Long> undoneFrom = new HashMap<Long,Long>();
+
+        // walk back over the records, each of which ends with its start
+        long pos = currentOffset;
+        while (pos > stop) {
+            segments.seek(pos - LONG_SIZE);
+            long start = segments.readLong();
+            segments.seek(start);
+            int type = segments.readInt();
+            long tid = segments.readLong();
+            if (firstRecords.containsKey(tid)) {
+                Long undone = undoneFrom.get(tid);
+                boolean undo = undone == null || start < undone;
+                if (type == UPDATE_RECORD) {
+                    Page before = readPageData(segments);
+                    if (undo) {
+                        logClr(tid, before, start);
+                        pages.put(before.getId(), before);
+                    }
+                } else if (type == DELTA_RECORD && undo) {
+                    Page before = undoDelta(pages);
+                    logClr(tid, before, start);
+                    pages.put(before.getId(), before);
+                } else if (type == CLR_RECORD) {
+                    readPageData(segments);
+                    undoneFrom.merge(tid, segments.readLong(), Math::min);
+                }
+            }
+            pos = start;
+        }
+    }
+
+    /** Append a CLR for the undo of the update record at offset undone,
+        which installed page.  Caller holds the monitor of this LogFile. */
+    private void logClr(long tid, Page page, long undone) throws IOException {
+        out.writeInt(CLR_RECORD);
+        out.writeLong(tid);
+        writePageData(out, page);
+        out.writeLong(undone);
+        endRecord(currentOffset);
+        totalRecords++;
+    }
+
+    /** Write page images to their files, once the log records that
+        produced them are on disk, and drop any cached copies of them
+        from the buffer pool. */
+    private void installPages(Map<PageId,Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        force();
+        for (Page page : pages.values()) {
+            PageId pid = page.getId();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -477,7 +705,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -487,11 +715,127 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        Every table in the log must be in the catalog already.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
+                if (segments.end() == segments.start()) {
+                    // no log to recover from
+                    segments.clear();
+                    currentOffset = segments.end();
+                    flushedOffset = currentOffset;
+                    return;
+                }
+
+                // analysis: start from the transactions running at the
+                // checkpoint, if there is one
+                HashMap<Long,Long> losers = new HashMap<Long,Long>();
+                long cpLoc = segments.checkpoint();
+                long redoStart = segments.start();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    segments.seek(cpLoc);
+                    if (segments.readInt() != CHECKPOINT_RECORD)
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    segments.readLong();
+                    int numXactions = segments.readInt();
+                    while (numXactions-- > 0) {
+                        long tid = segments.readLong();
+                        losers.put(tid, segments.readLong());
+                    }
+                    // pages dirty at the checkpoint may lack changes
+                    // logged before it
+                    redoStart = cpLoc;
+                    int numDirty = segments.readInt();
+                    while (numDirty-- > 0) {
+                        readPageId(segments);
+                        redoStart = Math.min(redoStart, segments.readLong());
+                    }
+                }
+
+                // redo: repeat history from the oldest change that may not
+                // be on disk, finishing the analysis on the way (records
+                // before the checkpoint only repeat what its transaction
+                // table says); a torn record at the end is dropped.  Pages
+                // are redone in parallel, see ParallelRedo
+                ParallelRedo redo = new ParallelRedo(this);
+                Map<PageId,Page> pages;
+                long end = redoStart;
+                try {
+                    segments.seek(redoStart);
+                    boolean more = true;
+                    while (more) {
+                        try {
+                            int type = segments.readInt();
+                            long tid = segments.readLong();
+                            Page image = null;
+                            PageId pid = null;
+                            PageDelta delta = null;
+                            switch (type) {
+                            case BEGIN_RECORD:
+                            case COMMIT_RECORD:
+                            case ABORT_RECORD:
+                                break;
+                            case UPDATE_RECORD:
+                                readPageData(segments);
+                                image = readPageData(segments);
+                                break;
+                            case DELTA_RECORD:
+                                pid = readPageId(segments);
+                                delta = PageDelta.read(segments);
+                                break;
+                            case CLR_RECORD:
+                                image = readPageData(segments);
+                                segments.readLong();
+                                break;
+                            case CHECKPOINT_RECORD:
+                                int numXactions = segments.readInt();
+                                segments.skipBytes(numXactions * 2 * LONG_SIZE);
+                                int numDirty = segments.readInt();
+                                while (numDirty-- > 0) {
+                                    readPageId(segments);
+                                    segments.readLong();
+                                }
+                                break;
+                            default:
+                                // never written in full
+                                more = false;
+                                continue;
+                            }
+                            segments.readLong();
+
+                            // the record is whole; act on it
+                            if (type == BEGIN_RECORD)
+                                losers.put(tid, end);
+                            else if (type == COMMIT_RECORD || type == ABORT_RECORD)
+                                losers.remove(tid);
+                            else if (image != null)
+                                redo.image(image);
+                            else if (delta != null)
+                                redo.delta(pid, delta);
+                            end = segments.getFilePointer();
+                        } catch (EOFException e) {
+                            more = false;
+                        }
+                    }
+                } finally {
+                    pages = redo.finish();
+                }
+                segments.setLength(end);
+                currentOffset = end;
+                flushedOffset = end;
+
+                // undo: roll back the losers and log that they aborted
+                undo(losers, pages);
+                installPages(pages);
+                for (Long tid : losers.keySet()) {
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    endRecord(currentOffset);
+                }
+                force();
+                tidToFirstLogRecord.clear();
             }
          }
     }
@@ -500,8 +844,46 @@ public class LogFile {
     public void print() throws IOException {
     }
 
+    /** Write out the buffer and force the log to disk. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeBuffer();
+        LogSegments.force(segments.channels(groupCommit.durable()));
+        groupCommit.forced(currentOffset);
+    }
+
+    /** Make sure the log is on disk up to and including the record with
+        the given LSN, as returned by logWrite.  Does nothing if it is
+        already; otherwise the force is shared with committing
+        transactions (see GroupCommit).
+
+        @param lsn the LSN of a record appended to this log
+    */
+    public void flushToLSN(long lsn) throws IOException {
+        if (groupCommit.isDurable(lsn + 1))
+            return;
+        if (Thread.holdsLock(this))
+            // the group commit flusher would wait for us
+            force();
+        else
+            groupCommit.await(lsn + 1);
+    }
+
+    /** Write out the buffer and force the log, holding the monitor of
+        this LogFile only for the write; used by the group commit
+        flusher, so that appenders do not wait for the force.
+
+        @return the LSN up to which the log is now on disk
+    */
+    long writeAndForce() throws IOException {
+        long end;
+        List<FileChannel> channels;
+        synchronized (this) {
+            writeBuffer();
+            end = currentOffset;
+            channels = segments.channels(groupCommit.durable());
+        }
+        LogSegments.force(channels);
+        return end;
     }
 
 }
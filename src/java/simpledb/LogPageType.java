@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * LogPageType is the one-byte code the log stores page images under, for
+ * each kind of page, with a factory that builds the page from its bytes.
+ * Reading an image back looks the code up in a table, rather than loading
+ * the page class by name and finding its constructor by reflection, and
+ * the code takes one byte of the log where the class name took twenty or
+ * more.
+ * <p>
+ * Codes are stored in logs, so they are never changed or reused; a new
+ * kind of page gets a new code.  Pages of a class without a code are
+ * still logged by class name, as every page was before codes: such images
+ * start with a zero byte, the high byte of the length of the name, where
+ * a code would be.
+ *
+ * @see LogFile#writePageData
+ */
+enum LogPageType {
+
+    HEAP_PAGE(1, HeapPage.class,
+              (pid, data) -> new HeapPage((HeapPageId) pid, data)),
+    BTREE_LEAF_PAGE(2, BTreeLeafPage.class,
+                    (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid))),
+    BTREE_INTERNAL_PAGE(3, BTreeInternalPage.class,
+                        (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid))),
+    BTREE_HEADER_PAGE(4, BTreeHeaderPage.class,
+                      (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data)),
+    BTREE_ROOT_PTR_PAGE(5, BTreeRootPtrPage.class,
+                        (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+
+    /** Builds a page of one kind from its id and bytes. */
+    interface Factory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    private static final LogPageType[] byCode = new LogPageType[256];
+    private static final HashMap<Class<?>, LogPageType> byClass =
+        new HashMap<Class<?>, LogPageType>();
+    static {
+        for (LogPageType type : values()) {
+            byCode[type.code] = type;
+            byClass.put(type.pageClass, type);
+        }
+    }
+
+    /** The code written to the log; never 0. */
+    final int code;
+    final Class<? extends Page> pageClass;
+    private final Factory factory;
+
+    LogPageType(int code, Class<? extends Page> pageClass, Factory factory) {
+        this.code = code;
+        this.pageClass = pageClass;
+        this.factory = factory;
+    }
+
+    /** @return a page of this kind with the given id and data */
+    Page create(PageId pid, byte[] data) throws IOException {
+        return factory.create(pid, data);
+    }
+
+    /** @return the type with the given code, or null if there is none */
+    static LogPageType of(int code) {
+        return code > 0 && code < byCode.length ? byCode[code] : null;
+    }
+
+    /** @return the type of pages of pageClass, or null if it has no code */
+    static LogPageType of(Class<?> pageClass) {
+        return byClass.get(pageClass);
+    }
+
+    /** @return the key field of the B+ tree that pid belongs to */
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+}
@@ -0,0 +1,396 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * LogSegments stores the log in fixed-size segment files, named after the
+ * log file with the segment number appended, and keeps a small manifest
+ * in the log file itself: the LSN of the last checkpoint record, the LSN
+ * the retained log starts at, and the segment size.  An LSN is a position
+ * in the log as if it had never been truncated, so segment n holds LSNs
+ * n * segmentBytes up to (n + 1) * segmentBytes; records may span
+ * segments.
+ * <p>
+ * Truncating the front of the log rewrites the manifest, then deletes, or
+ * moves to an archive directory, the segments that lie wholly before the
+ * new start.  Nothing that is kept is copied.
+ * <p>
+ * The manifest is only ever replaced whole, by renaming a new one over
+ * it, so a log file of any other length is not a manifest.  A log file
+ * from before segments, which held the LSN of the last checkpoint
+ * followed by the records at their LSNs, is converted to segments when
+ * it is opened; anything else is refused.
+ * <p>
+ * The segment size is set by the simpledb.LogSegmentBytes system property
+ * when a log is created, and recorded in its manifest.  Setting the
+ * simpledb.LogArchiveDir system property archives truncated segments
+ * there instead of deleting them.
+ * <p>
+ * The log is read like a DataInputStream, from the position set by
+ * {@link #seek}.  Not thread safe; the {@link LogFile} guards it with its
+ * monitor.
+ */
+class LogSegments extends DataInputStream {
+
+    /** Name of the system property that sets the size of new segments. */
+    public static final String SEGMENT_PROPERTY = "simpledb.LogSegmentBytes";
+
+    /** Name of the system property that sets the archive directory. */
+    public static final String ARCHIVE_PROPERTY = "simpledb.LogArchiveDir";
+
+    static final long DEFAULT_SEGMENT_BYTES = 16 << 20;
+
+    private static final int MANIFEST_BYTES = 3 * LogFile.LONG_SIZE;
+
+    /** Bytes read from a segment at a time: sixteen default-size pages. */
+    private static final int READ_BUFFER_BYTES = 1 << 16;
+
+    private final File manifestFile;
+    private final Input input;
+    private long segmentBytes;
+
+    /** LSN of the last checkpoint record, or NO_CHECKPOINT_ID. */
+    private long checkpoint;
+    /** LSN of the first byte kept. */
+    private long start;
+    /** LSN past the last byte written. */
+    private long end;
+    /** LSN the next read starts at. */
+    private long position;
+
+    /** Open segment files, by segment number. */
+    private final TreeMap<Long, RandomAccessFile> segments =
+        new TreeMap<Long, RandomAccessFile>();
+
+    /**
+     * Open the log whose manifest is f.  A missing or empty manifest is
+     * taken for an empty log, whose segments the next {@link #clear}
+     * deletes; a single-file log from before segments is converted.
+     *
+     * @throws IOException if f is neither a manifest nor an old log
+     */
+    LogSegments(File f) throws IOException {
+        super(null);
+        input = new Input();
+        in = input;
+        manifestFile = f;
+        segmentBytes = Long.getLong(SEGMENT_PROPERTY, DEFAULT_SEGMENT_BYTES);
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        long length = f.length();
+        if (length == 0)
+            return;
+        if (length != MANIFEST_BYTES) {
+            convert();
+            return;
+        }
+        try (DataInputStream manifest = new DataInputStream(new FileInputStream(f))) {
+            checkpoint = manifest.readLong();
+            start = manifest.readLong();
+            segmentBytes = manifest.readLong();
+        }
+        if (segmentBytes <= 0 || start < 0)
+            throw new IOException("corrupt log manifest " + f);
+        end = start;
+        for (long n : segmentNumbers()) {
+            if (n >= start / segmentBytes)
+                end = Math.max(end, n * segmentBytes + segmentFile(n).length());
+        }
+    }
+
+    /**
+     * Copy a single-file log into segments at the same LSNs: the file
+     * starts with the LSN of its last checkpoint record, and each record
+     * is at its LSN.  The manifest replaces the old file only once the
+     * segments are forced, so a crash part way leaves the old log to
+     * convert again.
+     */
+    private void convert() throws IOException {
+        long length = manifestFile.length();
+        try (RandomAccessFile old = new RandomAccessFile(manifestFile, "r")) {
+            long cp = length >= LogFile.LONG_SIZE ? old.readLong() : 0;
+            if (length < LogFile.LONG_SIZE
+                || (cp != LogFile.NO_CHECKPOINT_ID && (cp < LogFile.LONG_SIZE || cp >= length)))
+                throw new IOException(manifestFile + " is neither a log manifest nor a log");
+            // left by an earlier conversion that did not finish
+            for (long n : segmentNumbers())
+                drop(n, false);
+            checkpoint = cp;
+            old.seek(0);
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = old.read(buf)) > 0)
+                append(buf, 0, n);
+        }
+        start = LogFile.LONG_SIZE;
+        force(channels(start));
+        writeManifest();
+    }
+    /** @return the LSN of the first byte kept */
+    long start() {
+        return start;
+    }
+
+    /** @return the LSN past the last byte written */
+    long end() {
+        return end;
+    }
+
+    /** @return the LSN of the last checkpoint record, or NO_CHECKPOINT_ID */
+    long checkpoint() {
+        return checkpoint;
+    }
+
+    /** @return the number of segment files kept */
+    int segmentCount() {
+        return segmentNumbers().size();
+    }
+
+    /** Point the manifest at the checkpoint record at lsn, durably. */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeManifest();
+    }
+
+    /** Position the next read at lsn. */
+    void seek(long lsn) throws IOException {
+        if (lsn < start)
+            throw new IOException("log truncated before LSN " + lsn);
+        position = lsn;
+    }
+
+    /** @return the LSN the next read starts at */
+    long getFilePointer() {
+        return position;
+    }
+
+    /** Write bytes at the end of the log, starting new segments as needed. */
+    void append(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long offset = end % segmentBytes;
+            int n = (int) Math.min(len, segmentBytes - offset);
+            RandomAccessFile segment = segment(end / segmentBytes);
+            segment.seek(offset);
+            segment.write(b, off, n);
+            off += n;
+            len -= n;
+            end += n;
+        }
+    }
+
+    /**
+     * @return the channels of the segments holding the LSNs from from up
+     * to the end of the log, to force them
+     */
+    List<FileChannel> channels(long from) throws IOException {
+        ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+        for (long n = Math.max(from, start) / segmentBytes;
+             n * segmentBytes < end; n++)
+            channels.add(segment(n).getChannel());
+        return channels;
+    }
+
+    /**
+     * Force channels returned by {@link #channels}.  Segments truncated
+     * meanwhile hold nothing that is still needed, so their closed
+     * channels are skipped.
+     */
+    static void force(List<FileChannel> channels) throws IOException {
+        for (FileChannel channel : channels) {
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // truncated
+            }
+        }
+    }
+
+    /** Cut the log off at lsn, dropping everything written after it. */
+    void setLength(long lsn) throws IOException {
+        long last = lsn / segmentBytes;
+        for (long n : segmentNumbers()) {
+            if (n > last)
+                drop(n, false);
+        }
+        segment(last).setLength(lsn - last * segmentBytes);
+        end = lsn;
+        input.invalidate();
+    }
+
+    /**
+     * Drop the log before lsn: the manifest is updated first, then the
+     * segments that end at or before lsn are deleted or archived.
+     */
+    void truncate(long lsn) throws IOException {
+        if (lsn <= start)
+            return;
+        start = lsn;
+        writeManifest();
+        String archive = System.getProperty(ARCHIVE_PROPERTY);
+        for (long n : segmentNumbers()) {
+            if (n < start / segmentBytes)
+                drop(n, archive != null);
+        }
+    }
+
+    /** Throw the whole log away, starting again from an empty one. */
+    void clear() throws IOException {
+        for (long n : segmentNumbers())
+            drop(n, false);
+        segmentBytes = Long.getLong(SEGMENT_PROPERTY, DEFAULT_SEGMENT_BYTES);
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        start = 0;
+        end = 0;
+        position = 0;
+        input.invalidate();
+        writeManifest();
+    }
+
+    @Override public void close() throws IOException {
+        for (RandomAccessFile segment : segments.values())
+            segment.close();
+        segments.clear();
+    }
+
+    /** Durably replace the manifest, by renaming a new one over it. */
+    private void writeManifest() throws IOException {
+        File next = new File(manifestFile.getPath() + ".new");
+        try (RandomAccessFile manifest = new RandomAccessFile(next, "rw")) {
+            manifest.setLength(0);
+            manifest.writeLong(checkpoint);
+            manifest.writeLong(start);
+            manifest.writeLong(segmentBytes);
+            manifest.getChannel().force(true);
+        }
+        Files.move(next.toPath(), manifestFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        File dir = manifestFile.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can force a directory
+        }
+    }
+
+    private File segmentFile(long n) {
+        return new File(manifestFile.getPath() + String.format(".%08d", n));
+    }
+
+    /** @return the numbers of the segment files on disk */
+    private SortedSet<Long> segmentNumbers() {
+        TreeSet<Long> numbers = new TreeSet<Long>(segments.keySet());
+        String prefix = manifestFile.getName() + ".";
+        File dir = manifestFile.getAbsoluteFile().getParentFile();
+        String[] names = dir.list();
+        if (names == null)
+            return numbers;
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        return numbers;
+    }
+
+    private RandomAccessFile segment(long n) throws IOException {
+        RandomAccessFile segment = segments.get(n);
+        if (segment == null) {
+            segment = new RandomAccessFile(segmentFile(n), "rw");
+            segments.put(n, segment);
+        }
+        return segment;
+    }
+
+    private void drop(long n, boolean archive) throws IOException {
+        RandomAccessFile segment = segments.remove(n);
+        if (segment != null)
+            segment.close();
+        File file = segmentFile(n);
+        if (archive) {
+            File dir = new File(System.getProperty(ARCHIVE_PROPERTY));
+            dir.mkdirs();
+            Files.move(file.toPath(), new File(dir, file.getName()).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads the log from the current position, across segments, through
+     * a buffer of READ_BUFFER_BYTES that is refilled when a read falls
+     * outside it, so that reading a record field by field costs no system
+     * call per field.
+     */
+    private class Input extends InputStream {
+        private final byte[] buffer = new byte[READ_BUFFER_BYTES];
+        /** LSN of buffer[0]. */
+        private long bufferStart;
+        /** Number of valid bytes in buffer. */
+        private int bufferLength;
+
+        /** Forget the buffered bytes, whose LSNs now hold others. */
+        void invalidate() {
+            bufferLength = 0;
+        }
+
+        @Override public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buffer[(int) (position++ - bufferStart)] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int from = (int) (position - bufferStart);
+            int n = Math.min(len, bufferLength - from);
+            System.arraycopy(buffer, from, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        /**
+         * Make sure the buffer holds the byte at position, reading from
+         * it up to the end of its segment or of the log.
+         *
+         * @return false at the end of the log
+         */
+        private boolean fill() throws IOException {
+            if (position >= end)
+                return false;
+            if (position >= bufferStart && position < bufferStart + bufferLength)
+                return true;
+            long offset = position % segmentBytes;
+            int n = (int) Math.min(buffer.length, Math.min(segmentBytes - offset, end - position));
+            RandomAccessFile segment = segment(position / segmentBytes);
+            segment.seek(offset);
+            bufferStart = position;
+            bufferLength = 0;
+            while (bufferLength < n) {
+                int read = segment.read(buffer, bufferLength, n - bufferLength);
+                if (read < 0)
+                    break;
+                bufferLength += read;
+            }
+            return bufferLength > 0;
+        }
+    }
+}
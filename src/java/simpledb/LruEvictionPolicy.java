@@ -0,0 +1,78 @@
+package simpledb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Least recently used replacement.  Occupied frames are kept in a doubly
+ * linked list threaded through two int arrays, most recently used at the
+ * head, so recording an access is a constant time unlink and relink.
+ * Victims are taken from the tail, skipping frames that may not be evicted.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private static final int NIL = -1;
+
+    private final int[] prev;
+    private final int[] next;
+    private final boolean[] linked;
+    private int head = NIL;
+    private int tail = NIL;
+
+    /**
+     * @param numFrames the number of frames in the buffer pool
+     */
+    public LruEvictionPolicy(int numFrames) {
+        prev = new int[numFrames];
+        next = new int[numFrames];
+        linked = new boolean[numFrames];
+    }
+
+    private void unlink(int frame) {
+        if (prev[frame] != NIL)
+            next[prev[frame]] = next[frame];
+        else
+            head = next[frame];
+        if (next[frame] != NIL)
+            prev[next[frame]] = prev[frame];
+        else
+            tail = prev[frame];
+        linked[frame] = false;
+    }
+
+    private void pushFront(int frame) {
+        prev[frame] = NIL;
+        next[frame] = head;
+        if (head != NIL)
+            prev[head] = frame;
+        head = frame;
+        if (tail == NIL)
+            tail = frame;
+        linked[frame] = true;
+    }
+
+    public void frameFilled(int frame) {
+        if (linked[frame])
+            unlink(frame);
+        pushFront(frame);
+    }
+
+    public void frameAccessed(int frame) {
+        if (linked[frame] && head != frame) {
+            unlink(frame);
+            pushFront(frame);
+        }
+    }
+
+    public void frameEmptied(int frame) {
+        if (linked[frame])
+            unlink(frame);
+    }
+
+    public int chooseVictim(IntPredicate evictable) {
+        for (int frame = tail; frame != NIL; frame = prev[frame]) {
+            if (evictable.test(frame))
+                return frame;
+        }
+        return NIL;
+    }
+}
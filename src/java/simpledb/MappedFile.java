@@ -0,0 +1,56 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * MappedFile serves page reads of a read-mostly table from a read-only
+ * memory mapping of its file, so that reading a page is a slice of the
+ * mapping rather than a system call and a copy.  Writes still go through
+ * {@link FileHandleCache}; the mapping is shared with the OS page cache, so
+ * it sees them.
+ * <p>
+ * When a read falls past the end of the mapping because the file has grown,
+ * the whole file is mapped again.  Slices of the old mapping stay valid, as
+ * a mapping is only released once nothing refers to it.
+ *
+ * @Threadsafe
+ */
+class MappedFile {
+
+    private final File f;
+    private volatile MappedByteBuffer map;
+
+    /**
+     * @param f the file to map
+     */
+    MappedFile(File f) {
+        this.f = f;
+    }
+
+    /**
+     * @return a read-only buffer over length bytes of the file at offset,
+     *   or null if the file is not that long or the range cannot be mapped
+     */
+    ByteBuffer slice(long offset, int length) throws IOException {
+        if (offset + length > Integer.MAX_VALUE)
+            return null;
+        MappedByteBuffer m = map;
+        if (m == null || offset + length > m.capacity())
+            m = remap(offset + length);
+        if (offset + length > m.capacity())
+            return null;
+        ByteBuffer view = m.duplicate();
+        view.limit((int) offset + length);
+        view.position((int) offset);
+        return view.slice();
+    }
+
+    /** Map the file again if the current mapping is shorter than needed. */
+    private synchronized MappedByteBuffer remap(long needed) throws IOException {
+        if (map == null || map.capacity() < needed)
+            map = FileHandleCache.map(f);
+        return map;
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PageArena is one large direct (off-heap) ByteBuffer carved into page sized
+ * slabs.  When the BufferPool is built with an arena, pages are read from
+ * disk straight into the slab of the frame they will occupy, and HeapPage
+ * and BTreeLeafPage decode fields from the slab only when they are asked
+ * for, so a large cache costs little Java heap and adds nothing for the
+ * garbage collector to trace.
+ * <p>
+ * Slabs are handed out by frame number; the BufferPool makes sure a slab
+ * backs at most one resident page at a time.
+ *
+ * @see SlabPage
+ */
+class PageArena {
+
+    private final ByteBuffer arena;
+    private final int pageSize;
+    private final int numSlabs;
+
+    /**
+     * @param numSlabs number of pages the arena holds
+     * @param pageSize bytes per page
+     */
+    PageArena(int numSlabs, int pageSize) {
+        this.numSlabs = numSlabs;
+        this.pageSize = pageSize;
+        arena = ByteBuffer.allocateDirect(numSlabs * pageSize);
+    }
+
+    /** @return the number of slabs in the arena */
+    int numSlabs() {
+        return numSlabs;
+    }
+
+    /**
+     * @return a new buffer over slab i
+     */
+    ByteBuffer slab(int i) {
+        ByteBuffer view = arena.duplicate();
+        view.limit((i + 1) * pageSize);
+        view.position(i * pageSize);
+        return view.slice();
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PageDelta is the difference between two images of the same page: the
+ * byte ranges in which they differ, with the old and the new bytes of
+ * each.  Inserting or deleting a tuple, flipping a header bit or moving
+ * B+ tree entries all change a few small ranges of a page, so a delta is
+ * usually a tiny fraction of the page.
+ * <p>
+ * Redo sets every range to its new bytes and undo to its old ones, so
+ * both are idempotent: applying a delta to a page that already has it
+ * changes nothing.
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /**
+     * Ranges closer than this are merged, as the header of a separate
+     * range costs more than the unchanged bytes in between.
+     */
+    private static final int MERGE_GAP = 8;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @param before the old page image
+     * @param after the new page image, of the same length
+     * @return the delta that turns before into after
+     */
+    static PageDelta diff(byte[] before, byte[] after) {
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < before.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend over changed bytes and short unchanged gaps
+            for (int j = end; j < before.length && j - end < MERGE_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] {start, end});
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] old = new byte[ranges.size()][];
+        byte[][] now = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            old[r] = Arrays.copyOfRange(before, range[0], range[1]);
+            now[r] = Arrays.copyOfRange(after, range[0], range[1]);
+        }
+        return new PageDelta(offsets, old, now);
+    }
+
+    /** @return a copy of data with the new bytes of this delta */
+    byte[] redo(byte[] data) {
+        return apply(data, after);
+    }
+
+    /** @return a copy of data with the old bytes of this delta */
+    byte[] undo(byte[] data) {
+        return apply(data, before);
+    }
+
+    private byte[] apply(byte[] data, byte[][] bytes) {
+        byte[] result = data.clone();
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(bytes[r], 0, result, offsets[r], bytes[r].length);
+        return result;
+    }
+
+    /** @return the number of changed ranges */
+    int ranges() {
+        return offsets.length;
+    }
+
+    /**
+     * Write the delta as a count of ranges followed by the offset, length,
+     * old bytes and new bytes of each.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(before[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Read a delta written by {@link #write}. */
+    static PageDelta read(DataInput in) throws IOException {
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            in.readFully(before[r]);
+            after[r] = new byte[length];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+}
@@ -0,0 +1,46 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageLatches are short-term reader/writer latches on pages, held only
+ * while a thread reads or changes a page in the buffer pool.  Unlike the
+ * locks of the {@link LockManager} they protect the physical page rather
+ * than the data on it: they are not held until commit, and a thread
+ * waiting for one is not in the wait-for graph.  Callers avoid latch
+ * deadlocks by latching pages in a fixed order, and by never waiting for
+ * a lock while holding a latch.
+ *
+ * @see BufferPool#latch
+ * @Threadsafe
+ */
+class PageLatches {
+
+    private final ConcurrentHashMap<PageId, ReentrantReadWriteLock> latches =
+        new ConcurrentHashMap<PageId, ReentrantReadWriteLock>();
+
+    private ReentrantReadWriteLock latchOf(PageId pid) {
+        ReentrantReadWriteLock latch = latches.get(pid);
+        if (latch != null)
+            return latch;
+        latches.putIfAbsent(pid, new ReentrantReadWriteLock());
+        return latches.get(pid);
+    }
+
+    /** Block until the calling thread holds pid's latch, shared or exclusive. */
+    void latch(PageId pid, boolean exclusive) {
+        if (exclusive)
+            latchOf(pid).writeLock().lock();
+        else
+            latchOf(pid).readLock().lock();
+    }
+
+    /** Release a latch on pid taken by the calling thread. */
+    void unlatch(PageId pid, boolean exclusive) {
+        if (exclusive)
+            latchOf(pid).writeLock().unlock();
+        else
+            latchOf(pid).readLock().unlock();
+    }
+}
@@ -0,0 +1,46 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Writes a batch of pages of one file with as few system calls as possible:
+ * the pages are sorted by page number, and every run of consecutive pages
+ * goes out in a single gathering write.
+ *
+ * @see FileHandleCache
+ *
+ * @see DbFile#writePages
+ */
+class PageRunWriter {
+
+    private PageRunWriter() {
+    }
+
+    /**
+     * Write pages to f, page number n at offset base + n * pageSize.
+     *
+     * @param f the file to write
+     * @param pages the pages to write, all of the same file; reordered
+     * @param base the offset of page number 0, which may be virtual
+     */
+    static void write(File f, List<Page> pages, long base) throws IOException {
+        if (pages.isEmpty())
+            return;
+        pages.sort(Comparator.comparingInt(p -> p.getId().pageNumber()));
+        int pageSize = BufferPool.getPageSize();
+        int start = 0;
+        while (start < pages.size()) {
+            int end = start + 1;
+            while (end < pages.size() && pages.get(end).getId().pageNumber()
+                    == pages.get(end - 1).getId().pageNumber() + 1)
+                end++;
+            ByteBuffer[] run = new ByteBuffer[end - start];
+            for (int i = start; i < end; i++)
+                run[i - start] = ByteBuffer.wrap(pages.get(i).getPageData());
+            FileHandleCache.write(f, run, base + (long) pages.get(start).getId().pageNumber() * pageSize);
+            start = end;
+        }
+    }
+}
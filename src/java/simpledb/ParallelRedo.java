@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ParallelRedo runs the redo pass of recovery on several threads.  The
+ * recovery thread reads the log in order and hands each page's records to
+ * the worker its page id hashes to; a worker keeps the latest image of
+ * each of its pages, so records for one page replay in LSN order while
+ * different pages replay at the same time.
+ * <p>
+ * A DELTA record applies to the image of its page before it, which is
+ * read from disk unless an earlier record produced it.  The read is
+ * started in the background as soon as the log shows a DELTA record for a
+ * page not seen before, so that the worker rarely waits for it.
+ * <p>
+ * The number of workers is set by the simpledb.RedoThreads system
+ * property and defaults to the number of processors.
+ *
+ * @see LogFile#recover
+ */
+class ParallelRedo {
+
+    /** Name of the system property that sets the number of workers. */
+    public static final String THREADS_PROPERTY = "simpledb.RedoThreads";
+
+    /** Records queued per worker before the log reader waits. */
+    private static final int QUEUE_RECORDS = 1024;
+
+    /** A record to redo: a page image to install, or a delta to apply. */
+    private static class Redo {
+        final PageId pid;
+        final Page image;
+        final PageDelta delta;
+        /** The page read from disk, for the first delta of a page. */
+        final Future<Page> base;
+
+        Redo(PageId pid, Page image, PageDelta delta, Future<Page> base) {
+            this.pid = pid;
+            this.image = image;
+            this.delta = delta;
+            this.base = base;
+        }
+    }
+
+    /** Tells a worker the log has been read. */
+    private static final Redo DONE = new Redo(null, null, null, null);
+
+    private final LogFile log;
+    private final Worker[] workers;
+    private final ExecutorService prefetch;
+    /** Pages the log has shown so far; used by the log reader only. */
+    private final HashSet<PageId> seen = new HashSet<PageId>();
+
+    /**
+     * Start the workers.
+     *
+     * @param log the log being recovered, which creates the page images
+     */
+    ParallelRedo(LogFile log) {
+        this(log, Integer.getInteger(THREADS_PROPERTY,
+                                     Runtime.getRuntime().availableProcessors()));
+    }
+
+    ParallelRedo(LogFile log, int threads) {
+        this.log = log;
+        threads = Math.max(1, threads);
+        prefetch = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "simpledb-redo-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+            workers[i].setName("simpledb-redo-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /** Redo an UPDATE or CLR record that installed image. */
+    void image(Page image) throws IOException {
+        seen.add(image.getId());
+        submit(new Redo(image.getId(), image, null, null));
+    }
+
+    /** Redo a DELTA record of page pid. */
+    void delta(PageId pid, PageDelta delta) throws IOException {
+        Future<Page> base = null;
+        if (seen.add(pid))
+            base = prefetch.submit(() ->
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+        submit(new Redo(pid, null, delta, base));
+    }
+
+    private void submit(Redo redo) throws IOException {
+        Worker worker = workers[Math.floorMod(redo.pid.hashCode(), workers.length)];
+        try {
+            worker.queue.put(redo);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during redo");
+        }
+    }
+
+    /**
+     * Wait for the workers to replay every record submitted, and stop
+     * them.  Call once, also if reading the log failed.
+     *
+     * @return the latest image of every page redone, by page id
+     * @throws IOException if a worker failed to redo a record
+     */
+    Map<PageId, Page> finish() throws IOException {
+        HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+        IOException failure = null;
+        boolean interrupted = false;
+        for (Worker worker : workers) {
+            while (true) {
+                try {
+                    worker.queue.put(DONE);
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    // the workers hold pages that have to be installed
+                    interrupted = true;
+                }
+            }
+            pages.putAll(worker.pages);
+            if (failure == null)
+                failure = worker.failure;
+        }
+        prefetch.shutdownNow();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw failure;
+        return pages;
+    }
+
+    /** Replays the records of the pages that hash to it, in log order. */
+    private class Worker extends Thread {
+        final BlockingQueue<Redo> queue = new ArrayBlockingQueue<Redo>(QUEUE_RECORDS);
+        final HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+        /** The first failure; read by finish() after join(). */
+        IOException failure;
+
+        public void run() {
+            while (true) {
+                Redo redo;
+                try {
+                    redo = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (redo == DONE)
+                    return;
+                if (failure != null)
+                    // keep draining, so the log reader never blocks
+                    continue;
+                try {
+                    pages.put(redo.pid, redo.image != null ? redo.image : apply(redo));
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException | ExecutionException e) {
+                    failure = new IOException("redo of " + redo.pid + " failed: " + e);
+                } catch (InterruptedException e) {
+                    failure = new IOException("interrupted during redo");
+                }
+            }
+        }
+
+        private Page apply(Redo redo)
+            throws IOException, ExecutionException, InterruptedException {
+            Page base = pages.get(redo.pid);
+            if (base == null)
+                base = redo.base != null ? redo.base.get()
+                    : Database.getCatalog().getDatabaseFile(redo.pid.getTableId()).readPage(redo.pid);
+            return log.newPage(base.getClass(), redo.pid, redo.delta.redo(base.getPageData()));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ReadAhead follows the pages requested by one scan of a HeapFile.  Once the
+ * scan is seen to read pages in order, the next pages of the file are
+ * loaded into the BufferPool on a background I/O thread, so that the scan
+ * finds them resident instead of stalling on a disk read.
+ * <p>
+ * The number of pages kept in flight ahead of the scan adapts to the hit
+ * rate: every page the scan has to wait for doubles the window, and each run
+ * of window consecutive hits shrinks it by one page.  The window is capped
+ * by the simpledb.ReadAheadPages system property and by a quarter of the
+ * pool, so read-ahead never evicts the pages the scan is about to use; set
+ * the property to 0 to turn read-ahead off.  A scan with a {@link BufferRing}
+ * reads ahead into its ring, and by at most half the ring.
+ * <p>
+ * Read-ahead takes no locks: a prefetched page is only cached, and the scan
+ * still locks it through {@link BufferPool#getPage} when it gets there.
+ */
+class ReadAhead {
+
+    /** Name of the system property that caps the read-ahead window. */
+    public static final String PAGES_PROPERTY = "simpledb.ReadAheadPages";
+
+    private static final int MAX_WINDOW = Integer.getInteger(PAGES_PROPERTY, 32);
+    private static final int MIN_WINDOW = 2;
+    private static final int IO_THREADS = 2;
+
+    /** Shared by every scan; daemon threads so they never keep the VM up. */
+    private static final ExecutorService io = Executors.newFixedThreadPool(IO_THREADS, r -> {
+        Thread t = new Thread(r, "simpledb-readahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BufferPool bp;
+    private final BufferRing ring;
+    private final int tableId;
+    private final int maxWindow;
+
+    private int window = MIN_WINDOW;
+    private int lastPage = -1;
+    private int issuedThrough = -1;
+    private int hits = 0;
+
+    /**
+     * @param bp the pool to load pages into
+     * @param tableId the HeapFile being scanned
+     */
+    ReadAhead(BufferPool bp, int tableId) {
+        this(bp, tableId, null);
+    }
+
+    /**
+     * @param bp the pool to load pages into
+     * @param tableId the HeapFile being scanned
+     * @param ring the scan's buffer ring, or null
+     */
+    ReadAhead(BufferPool bp, int tableId, BufferRing ring) {
+        this.bp = bp;
+        this.ring = ring;
+        this.tableId = tableId;
+        int cap = ring == null ? bp.getNumPages() / 4 : ring.capacity() / 2;
+        this.maxWindow = Math.min(MAX_WINDOW, cap);
+    }
+
+    /**
+     * Record that the scan is about to get pageNo, and queue reads for the
+     * pages after it if the scan is sequential.  Call before getPage.
+     *
+     * @param pageNo the page the scan wants next
+     * @param numPages the number of pages in the file
+     */
+    void pageRequested(int pageNo, int numPages) {
+        if (maxWindow < MIN_WINDOW)
+            return;
+        if (pageNo != lastPage + 1) {
+            // random access: start over
+            window = MIN_WINDOW;
+            hits = 0;
+            issuedThrough = pageNo;
+            lastPage = pageNo;
+            return;
+        }
+        lastPage = pageNo;
+
+        if (!bp.isResident(new HeapPageId(tableId, pageNo))) {
+            window = Math.min(maxWindow, window * 2);
+            hits = 0;
+        } else if (++hits >= window) {
+            window = Math.max(MIN_WINDOW, window - 1);
+            hits = 0;
+        }
+
+        int last = Math.min(pageNo + window, numPages - 1);
+        for (int p = Math.max(issuedThrough + 1, pageNo + 1); p <= last; p++) {
+            final HeapPageId pid = new HeapPageId(tableId, p);
+            io.execute(() -> {
+                try {
+                    bp.prefetchPage(pid, ring);
+                } catch (RuntimeException e) {
+                    // only a hint; the scan will read the page itself
+                    Debug.log("ReadAhead: prefetch of %s failed: %s", pid, e);
+                }
+            });
+        }
+        issuedThrough = Math.max(issuedThrough, last);
+    }
+
+    /** @return the current read-ahead window, in pages */
+    int window() {
+        return window;
+    }
+}
@@ -0,0 +1,21 @@
+package simpledb;
+
+/**
+ * A Page that may read its tuples in place from the buffer it was
+ * constructed over, such as a slab of the BufferPool's off-heap
+ * {@link PageArena}, rather than from deserialized copies on the heap.
+ *
+ * @see PageArena
+ */
+interface SlabPage extends Page {
+
+    /**
+     * Copy whatever this page still reads from its slab onto the heap.
+     * The BufferPool calls this before it reuses the slab for another page,
+     * since operators may still hold a reference to this one.
+     */
+    void releaseSlab();
+
+    /** @return true if this page reads its tuples from buf */
+    boolean readsFrom(java.nio.ByteBuffer buf);
+}
@@ -9,14 +9,34 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly whether the transaction only reads, in which case it
+     *   reads a snapshot without locking or logging
+     * @see BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
-    /** Start the transaction running */
-    public void start() {
+    /**
+     * Start the transaction running
+     *
+     * @throws DbException if a read-only transaction cannot begin its snapshot
+     */
+    public void start() throws DbException {
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            started = true;
+            return;
+        }
         started = true;
         try {
             Database.getLogFile().logXactionBegin(tid);
@@ -42,14 +62,15 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
-            //write commit / abort records
+        if (started && readOnly) {
+            //a snapshot changes nothing, so has nothing to log or release
+            Database.getBufferPool().endSnapshot(tid);
+            started = false;
+        } else if (started) {
+            //write abort records; the buffer pool logs commits, as it
+            //logs the transaction's dirty pages first
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
             }
 
             try {
@@ -11,12 +11,32 @@ public class TransactionId implements Serializable {
     private static final long serialVersionUID = 1L;
 
     static AtomicLong counter = new AtomicLong(0);
+    private static final AtomicLong systemCounter = new AtomicLong(-1);
     final long myid;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
     }
 
+    private TransactionId(long id) {
+        myid = id;
+    }
+
+    /**
+     * @return a new id for the buffer pool to lock pages under while it
+     *   writes them out on no transaction's behalf.  It takes no number
+     *   from the counter, which orders transactions by age, and is never
+     *   logged.
+     */
+    static TransactionId system() {
+        return new TransactionId(systemCounter.getAndDecrement());
+    }
+
+    /** @return true if this id was made by {@link #system} */
+    boolean isSystem() {
+        return myid < 0;
+    }
+
     public long getId() {
         return myid;
     }
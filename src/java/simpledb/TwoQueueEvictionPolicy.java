@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Simplified 2Q replacement (Johnson and Shasha).  Newly loaded pages enter
+ * a FIFO probation queue, A1; only a page that is hit again while on
+ * probation is promoted to the main LRU queue, Am.  Pages touched once, such
+ * as the pages of a sequential scan, therefore age out of A1 without
+ * displacing the hot set in Am.
+ * <p>
+ * Victims come from A1 while it holds more than a quarter of the frames,
+ * and from Am otherwise.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final LruEvictionPolicy a1;
+    private final LruEvictionPolicy am;
+    private final boolean[] inAm;
+    private final boolean[] occupied;
+    private final int a1Target;
+    private int a1Size = 0;
+
+    /**
+     * @param numFrames the number of frames in the buffer pool
+     */
+    public TwoQueueEvictionPolicy(int numFrames) {
+        a1 = new LruEvictionPolicy(numFrames);
+        am = new LruEvictionPolicy(numFrames);
+        inAm = new boolean[numFrames];
+        occupied = new boolean[numFrames];
+        a1Target = Math.max(1, numFrames / 4);
+    }
+
+    public void frameFilled(int frame) {
+        if (occupied[frame])
+            frameEmptied(frame);
+        occupied[frame] = true;
+        inAm[frame] = false;
+        a1.frameFilled(frame);
+        a1Size++;
+    }
+
+    public void frameAccessed(int frame) {
+        if (!occupied[frame])
+            return;
+        if (inAm[frame]) {
+            am.frameAccessed(frame);
+        } else {
+            // second touch: promote out of probation
+            a1.frameEmptied(frame);
+            a1Size--;
+            inAm[frame] = true;
+            am.frameFilled(frame);
+        }
+    }
+
+    public void frameEmptied(int frame) {
+        if (!occupied[frame])
+            return;
+        if (inAm[frame]) {
+            am.frameEmptied(frame);
+        } else {
+            a1.frameEmptied(frame);
+            a1Size--;
+        }
+        occupied[frame] = false;
+        inAm[frame] = false;
+    }
+
+    public int chooseVictim(IntPredicate evictable) {
+        LruEvictionPolicy first = a1Size > a1Target ? a1 : am;
+        LruEvictionPolicy second = first == a1 ? am : a1;
+        int victim = first.chooseVictim(evictable);
+        if (victim == -1)
+            victim = second.chooseVictim(evictable);
+        return victim;
+    }
+}
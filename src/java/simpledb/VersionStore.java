@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * VersionStore keeps the superseded committed versions of pages, so that
+ * read-only transactions can read a consistent snapshot of the database
+ * without taking locks.
+ * <p>
+ * Commits are numbered by a logical clock, and a snapshot is the clock
+ * value when it began: it sees every transaction that committed at or
+ * before that time and nothing later.  A page's latest committed version
+ * is its before image ({@link Page#getBeforeImage}), which writers leave
+ * alone until they commit.  At commit, while snapshots are open, the old
+ * before image of every page the transaction wrote is kept, tagged with
+ * the commit time that superseded it, before the new contents become the
+ * before image.  A snapshot therefore reads the oldest kept version
+ * superseded after it began, or the page's before image if there is none.
+ * <p>
+ * Under STEAL a page may be written out while its writer is still running,
+ * and once evicted, read back with the uncommitted changes as its before
+ * image.  The committed version of such a page is therefore kept aside
+ * (see {@link #steal}) until its writer commits or aborts.
+ * <p>
+ * Versions are dropped once they were superseded no later than the oldest
+ * open snapshot, as no open or future snapshot can read them.
+ *
+ * @see BufferPool#beginSnapshot
+ * @Threadsafe
+ */
+class VersionStore {
+
+    private static final int STRIPES = 64;
+
+    /** A superseded page version. */
+    private static class Version {
+        final PageId pid;
+        final Page image;
+        /** Commit time of the transaction that superseded image. */
+        final long end;
+
+        Version(PageId pid, Page image, long end) {
+            this.pid = pid;
+            this.image = image;
+            this.end = end;
+        }
+    }
+
+    /** The committed version of a page a running transaction wrote out. */
+    private static class Stolen {
+        final TransactionId tid;
+        final Page image;
+
+        Stolen(TransactionId tid, Page image) {
+            this.tid = tid;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Latches ordering commits against snapshot reads of each page,
+     * striped by PageId; always taken after this VersionStore's monitor.
+     */
+    private final Object[] stripes = new Object[STRIPES];
+
+    /** Versions of each page, oldest first; guarded by the page's stripe. */
+    private final ConcurrentMap<PageId, ArrayDeque<Version>> versions =
+        new ConcurrentHashMap<PageId, ArrayDeque<Version>>();
+
+    /** Committed versions of stolen pages; changed under the page's stripe. */
+    private final ConcurrentMap<PageId, Stolen> stolen =
+        new ConcurrentHashMap<PageId, Stolen>();
+
+    /** Every kept version, oldest first; guarded by this. */
+    private final ArrayDeque<Version> byAge = new ArrayDeque<Version>();
+
+    /** Open snapshot times, with a count of each; guarded by this. */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+
+    /** Time of the latest commit; guarded by this. */
+    private long clock = 0;
+
+    VersionStore() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+    }
+
+    private Object stripe(PageId pid) {
+        return stripes[(pid.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /** @return the time of a new snapshot, which must be ended with {@link #endSnapshot} */
+    synchronized long beginSnapshot() {
+        snapshots.merge(clock, 1, Integer::sum);
+        return clock;
+    }
+
+    /** Close a snapshot begun at time snapshot, dropping versions only it could read. */
+    synchronized void endSnapshot(long snapshot) {
+        if (snapshots.merge(snapshot, -1, Integer::sum) == 0)
+            snapshots.remove(snapshot);
+        collectGarbage();
+    }
+
+    /**
+     * @param snapshot the time of an open snapshot
+     * @param live the buffer pool's copy of the page to read
+     * @return the version of live's page the snapshot sees; never live
+     *   itself, which writers may change
+     */
+    Page read(long snapshot, Page live) {
+        PageId pid = live.getId();
+        synchronized (stripe(pid)) {
+            ArrayDeque<Version> chain = versions.get(pid);
+            if (chain != null) {
+                for (Version v : chain) {
+                    if (v.end > snapshot)
+                        return v.image;
+                }
+            }
+            return committed(live);
+        }
+    }
+
+    /**
+     * @param live the buffer pool's copy of a page
+     * @return a copy of the latest committed version of live's page
+     */
+    Page committed(Page live) {
+        Stolen s = stolen.get(live.getId());
+        return s != null ? s.image.getBeforeImage() : live.getBeforeImage();
+    }
+
+    /**
+     * Note that page, dirtied by the running transaction tid, is about to
+     * be written out, and keep its committed version until tid completes.
+     */
+    void steal(TransactionId tid, Page page) {
+        PageId pid = page.getId();
+        synchronized (stripe(pid)) {
+            // a page read back after an earlier steal no longer knows it
+            if (!stolen.containsKey(pid))
+                stolen.put(pid, new Stolen(tid, page.getBeforeImage()));
+        }
+    }
+
+    /**
+     * Make the current contents of pages, all written by tid, their
+     * committed version, as well as those of the pages tid wrote out and
+     * has not read back since.  The versions they replace are kept if a
+     * snapshot is open.
+     */
+    synchronized void commit(TransactionId tid, Collection<Page> pages) {
+        List<Stolen> written = stolenBy(tid);
+        if (pages.isEmpty() && written.isEmpty())
+            return;
+        long now = ++clock;
+        boolean keep = !snapshots.isEmpty();
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            synchronized (stripe(pid)) {
+                Stolen s = stolen.remove(pid);
+                if (s != null)
+                    written.remove(s);
+                if (keep)
+                    supersede(pid, s != null ? s.image : page.getBeforeImage(), now);
+                page.setBeforeImage();
+            }
+        }
+        for (Stolen s : written) {
+            PageId pid = s.image.getId();
+            synchronized (stripe(pid)) {
+                stolen.remove(pid);
+                if (keep)
+                    supersede(pid, s.image, now);
+            }
+        }
+    }
+
+    /**
+     * Forget the pages tid wrote out, which it is rolling back.
+     *
+     * @return the committed versions of those pages
+     */
+    List<Page> abort(TransactionId tid) {
+        ArrayList<Page> images = new ArrayList<Page>();
+        for (Stolen s : stolenBy(tid)) {
+            PageId pid = s.image.getId();
+            synchronized (stripe(pid)) {
+                stolen.remove(pid);
+            }
+            images.add(s.image);
+        }
+        return images;
+    }
+
+    /** @return the pages tid wrote out while running */
+    List<PageId> stolenPages(TransactionId tid) {
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        for (Stolen s : stolenBy(tid))
+            pids.add(s.image.getId());
+        return pids;
+    }
+
+    private List<Stolen> stolenBy(TransactionId tid) {
+        ArrayList<Stolen> mine = new ArrayList<Stolen>();
+        for (Stolen s : stolen.values()) {
+            if (s.tid.equals(tid))
+                mine.add(s);
+        }
+        return mine;
+    }
+
+    /** Keep image, superseded at time end; caller holds this and pid's stripe. */
+    private void supersede(PageId pid, Page image, long end) {
+        Version v = new Version(pid, image, end);
+        versions.computeIfAbsent(pid, p -> new ArrayDeque<Version>()).addLast(v);
+        byAge.addLast(v);
+    }
+
+    /** @return the number of versions kept */
+    synchronized int size() {
+        return byAge.size();
+    }
+
+    /** Drop versions no open snapshot can read. */
+    private void collectGarbage() {
+        long oldest = snapshots.isEmpty() ? clock : snapshots.firstKey();
+        while (!byAge.isEmpty() && byAge.peekFirst().end <= oldest) {
+            Version v = byAge.pollFirst();
+            synchronized (stripe(v.pid)) {
+                ArrayDeque<Version> chain = versions.get(v.pid);
+                chain.pollFirst();
+                if (chain.isEmpty())
+                    versions.remove(v.pid);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WaitForGraph records which transactions each blocked transaction is
+ * waiting for, and breaks deadlocks by aborting the youngest transaction
+ * (the one with the highest id) on a cycle.  The youngest transaction has
+ * usually done the least work, and always choosing it means the oldest
+ * transaction in any cycle eventually gets through.
+ * <p>
+ * A victim is only marked; the {@link LockManager} wakes it, and the victim
+ * notices the mark and aborts itself.
+ *
+ * @see LockManager
+ * @Threadsafe
+ */
+class WaitForGraph {
+
+    /** Transactions each blocked transaction waits for. */
+    private final Map<TransactionId, Set<TransactionId>> edges =
+        new HashMap<TransactionId, Set<TransactionId>>();
+
+    /** Monitor each blocked transaction is parked on. */
+    private final Map<TransactionId, Object> parkedOn =
+        new HashMap<TransactionId, Object>();
+
+    /**
+     * Transactions chosen to abort that have not completed yet; updated
+     * under the monitor, but read without it on every lock request.
+     */
+    private final Set<TransactionId> victims = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Record that tid is blocked on monitor until every transaction in
+     * blockers releases its lock, replacing what was recorded before.
+     */
+    synchronized void waitFor(TransactionId tid, Set<TransactionId> blockers,
+                              Object monitor) {
+        edges.put(tid, blockers);
+        parkedOn.put(tid, monitor);
+    }
+
+    /** Record that tid is no longer blocked. */
+    synchronized void stopWaiting(TransactionId tid) {
+        edges.remove(tid);
+        parkedOn.remove(tid);
+    }
+
+    /**
+     * Forget tid, which has completed.  An abort mark is kept until then,
+     * so that a victim marked just as it was granted a lock still aborts
+     * at its next request.
+     */
+    synchronized void forget(TransactionId tid) {
+        stopWaiting(tid);
+        victims.remove(tid);
+    }
+
+    /** @return true if tid has been chosen to abort */
+    boolean isVictim(TransactionId tid) {
+        return victims.contains(tid);
+    }
+
+    /**
+     * Mark transactions as victims, as the wound-wait policy does to
+     * younger transactions in an older one's way.
+     *
+     * @return the monitors that newly marked transactions are parked on,
+     *   for the caller to wake once it holds no other monitor
+     */
+    synchronized List<Object> wound(Set<TransactionId> wounded) {
+        ArrayList<Object> parked = new ArrayList<Object>();
+        for (TransactionId t : wounded) {
+            if (victims.add(t) && parkedOn.containsKey(t))
+                parked.add(parkedOn.get(t));
+        }
+        return parked;
+    }
+
+    /**
+     * Look for a cycle of waits through tid and, if there is one, mark its
+     * youngest transaction as a victim.
+     *
+     * @return the monitor the victim is parked on, for the caller to wake
+     *   once it holds no other monitor, or null if there was no cycle or
+     *   tid itself is the victim
+     */
+    synchronized Object breakCycle(TransactionId tid) {
+        List<TransactionId> cycle = cycleThrough(tid);
+        if (cycle == null)
+            return null;
+        TransactionId victim = tid;
+        for (TransactionId t : cycle) {
+            if (t.getId() > victim.getId())
+                victim = t;
+        }
+        victims.add(victim);
+        return victim.equals(tid) ? null : parkedOn.get(victim);
+    }
+
+    /**
+     * @return the transactions on a cycle of waits from tid back to tid, or
+     *   null if there is none
+     */
+    private List<TransactionId> cycleThrough(TransactionId tid) {
+        ArrayDeque<TransactionId> path = new ArrayDeque<TransactionId>();
+        Set<TransactionId> visited = new HashSet<TransactionId>();
+        return search(tid, tid, path, visited) ? new ArrayList<TransactionId>(path) : null;
+    }
+
+    /** Depth first search from t for target, leaving the path in path. */
+    private boolean search(TransactionId t, TransactionId target,
+                           ArrayDeque<TransactionId> path,
+                           Set<TransactionId> visited) {
+        path.addLast(t);
+        // a transaction already chosen to abort is about to stop waiting
+        if (!victims.contains(t)) {
+            for (TransactionId next : edges.getOrDefault(t, Collections.<TransactionId>emptySet())) {
+                if (next.equals(target))
+                    return true;
+                if (visited.add(next) && search(next, target, path, visited))
+                    return true;
+            }
+        }
+        path.removeLast();
+        return false;
+    }
+}
@@ -0,0 +1,240 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeKeyLocksTest extends SimpleDbTestBase {
+
+    private BTreeFile bf;
+
+    @Before public void setUp() throws Exception {
+        // small pages, so that a few thousand keys split internal pages too
+        BufferPool.setPageSize(256);
+        File f = File.createTempFile("keylocks", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        bf = new BTreeFile(f, 0, Utility.getTupleDesc(2), false, true);
+        Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+    }
+
+    @After public void tearDown() {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private void insert(TransactionId tid, int key) throws Exception {
+        Database.getBufferPool().insertTuple(tid, bf.getId(),
+                BTreeUtility.getBTreeTuple(new int[] {key, key}));
+    }
+
+    /** @return the keys tid reads with ipred, or every key if ipred is null */
+    private ArrayList<Integer> keys(TransactionId tid, IndexPredicate ipred) throws Exception {
+        DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        it.open();
+        while (it.hasNext())
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        return keys;
+    }
+
+    /** Start a thread that inserts key for tid and commits. */
+    private Thread insertInBackground(TransactionId tid, int key) {
+        Thread t = new Thread(() -> {
+            try {
+                insert(tid, key);
+                Database.getBufferPool().transactionComplete(tid, true);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /**
+     * Transactions inserting different keys into the same leaf do not
+     * wait for each other.
+     */
+    @Test public void disjointInserts() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        insert(t1, 10);
+        insert(t2, 20);
+        insert(t1, 30);
+        Database.getBufferPool().transactionComplete(t1, true);
+        Database.getBufferPool().transactionComplete(t2, true);
+        assertEquals("[10, 20, 30]", keys(new TransactionId(), null).toString());
+    }
+
+    /**
+     * A range scan keeps inserts into its range out until it completes,
+     * but not inserts past the key after its range.
+     */
+    @Test public void noPhantoms() throws Exception {
+        TransactionId setup = new TransactionId();
+        for (int key : new int[] {10, 20, 30, 40})
+            insert(setup, key);
+        Database.getBufferPool().transactionComplete(setup, true);
+
+        TransactionId scan = new TransactionId();
+        IndexPredicate below25 = new IndexPredicate(Op.LESS_THAN, new IntField(25));
+        assertEquals("[10, 20]", keys(scan, below25).toString());
+
+        Thread outside = insertInBackground(new TransactionId(), 35);
+        outside.join(1000);
+        assertFalse(outside.isAlive());
+
+        Thread phantom = insertInBackground(new TransactionId(), 15);
+        phantom.join(200);
+        assertTrue(phantom.isAlive());
+        assertEquals("[10, 20]", keys(scan, below25).toString());
+        Database.getBufferPool().transactionComplete(scan, true);
+        phantom.join(1000);
+        assertFalse(phantom.isAlive());
+        assertEquals("[10, 15, 20]", keys(new TransactionId(), below25).toString());
+    }
+
+    /**
+     * An abort undoes only the aborting transaction's changes to a leaf
+     * shared with others.
+     */
+    @Test public void abortUndoesOwnKeys() throws Exception {
+        TransactionId setup = new TransactionId();
+        insert(setup, 10);
+        insert(setup, 20);
+        Database.getBufferPool().transactionComplete(setup, true);
+
+        TransactionId aborts = new TransactionId();
+        TransactionId commits = new TransactionId();
+        insert(aborts, 5);
+        insert(commits, 30);
+        DbFileIterator it = bf.indexIterator(aborts,
+                new IndexPredicate(Op.EQUALS, new IntField(10)));
+        it.open();
+        Database.getBufferPool().deleteTuple(aborts, it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(aborts, false);
+        Database.getBufferPool().transactionComplete(commits, true);
+        assertEquals("[10, 20, 30]", keys(new TransactionId(), null).toString());
+    }
+
+    /**
+     * The log cannot recover a tree that locks keys, so a logged
+     * transaction may read it but not change it.
+     */
+    @Test public void loggedTransactionsRefused() throws Exception {
+        TransactionId setup = new TransactionId();
+        insert(setup, 10);
+        Database.getBufferPool().transactionComplete(setup, true);
+
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            insert(t.getId(), 20);
+            fail("expected a DbException");
+        } catch (DbException e) {
+        }
+        assertEquals("[10]", keys(t.getId(), null).toString());
+        t.commit();
+        assertFalse(FileHandleCache.isUnforced(bf.getFile()));
+    }
+
+    /**
+     * Concurrent inserts that split leaves and internal pages leave every
+     * key in the tree, in order.
+     */
+    @Test public void concurrentSplits() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 400; j++) {
+                        TransactionId tid = new TransactionId();
+                        insert(tid, j * threads.length + offset);
+                        Database.getBufferPool().transactionComplete(tid, true);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(20000);
+            assertFalse(t.isAlive());
+        }
+        TransactionId tid = new TransactionId();
+        ArrayList<Integer> keys = keys(tid, null);
+        assertEquals(1600, keys.size());
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(i, (int) keys.get(i));
+
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        BTreePageId root = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+        BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, root, Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, page.iterator().next().getLeftChild().pgcateg());
+    }
+
+    /**
+     * Scans running alongside inserts that split pages see the keys in
+     * order, each once, whichever pages they have moved to.
+     */
+    @Test public void scansDuringSplits() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int j = 0; j < 1000; j++) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        insert(tid, j);
+                        Database.getBufferPool().transactionComplete(tid, true);
+                    } catch (TransactionAbortedException e) {
+                        Database.getBufferPool().transactionComplete(tid, false);
+                        j--;
+                    }
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            TransactionId tid = new TransactionId();
+            try {
+                ArrayList<Integer> keys = keys(tid, null);
+                for (int i = 0; i < keys.size(); i++)
+                    assertEquals(i, (int) keys.get(i));
+            } catch (TransactionAbortedException e) {
+            }
+            Database.getBufferPool().transactionComplete(tid, true);
+        }
+        assertEquals(null, failure.get());
+        assertEquals(1000, keys(new TransactionId(), null).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeKeyLocksTest.class);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferPoolShardTest extends TestUtil.CreateHeapFile {
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // three pages worth of tuples
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * Unit test for the BufferPool shard count clamping.
+     */
+    @Test public void shardCount() {
+        assertEquals(4, new BufferPool(50, 4).getNumShards());
+        assertEquals(2, new BufferPool(2, 8).getNumShards());
+        assertEquals(1, new BufferPool(10, 0).getNumShards());
+        assertEquals(1, new BufferPool(BufferPool.DEFAULT_PAGES).getNumShards());
+    }
+
+    /**
+     * Unit test for BufferPool.getPage() on a partitioned pool: every page
+     * lives in exactly one shard and is cached there.
+     */
+    @Test public void getPageAcrossShards() throws Exception {
+        BufferPool bp = new BufferPool(9, 3);
+        TransactionId tid = new TransactionId();
+        Page[] first = new Page[3];
+        for (int i = 0; i < 3; i++)
+            first[i] = bp.getPage(tid, new HeapPageId(empty.getId(), i), Permissions.READ_ONLY);
+        for (int i = 0; i < 3; i++)
+            assertSame(first[i], bp.getPage(tid, new HeapPageId(empty.getId(), i), Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    private static ArrayList<String> contents(Page page) {
+        ArrayList<String> tuples = new ArrayList<String>();
+        Iterator<Tuple> it = ((HeapPage) page).iterator();
+        while (it.hasNext())
+            tuples.add(it.next().toString());
+        return tuples;
+    }
+
+    /**
+     * A page read into an off-heap frame must keep its contents after the
+     * frame is evicted and its slab reused for another page.
+     */
+    @Test public void offHeapPageOutlivesFrame() throws Exception {
+        for (int pageNo = 0; pageNo < 2; pageNo++) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pageNo),
+                    HeapPage.createEmptyPageData());
+            for (int i = 0; i < 10; i++)
+                page.insertTuple(Utility.getHeapTuple(pageNo * 10 + i, 2));
+            empty.writePage(page);
+        }
+
+        BufferPool bp = new BufferPool(1, 1, ClockEvictionPolicy::new, true);
+        TransactionId tid = new TransactionId();
+        Page first = bp.getPage(tid, new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        ArrayList<String> before = contents(first);
+        assertEquals(10, before.size());
+
+        Page second = bp.getPage(tid, new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(before, contents(first));
+        assertTrue(!before.equals(contents(second)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolShardTest.class);
+    }
+}
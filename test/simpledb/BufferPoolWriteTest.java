@@ -133,6 +133,50 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for HeapFile.writePages(): out of order and non-adjacent
+     * pages all land at their own offsets.
+     */
+    @Test public void writePages() throws Exception {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int pageNo : new int[] { 3, 1, 2, 5, 0 }) {
+            HeapPage p = new HeapPage(new HeapPageId(empty.getId(), pageNo),
+                    HeapPage.createEmptyPageData());
+            p.insertTuple(Utility.getHeapTuple(pageNo, 2));
+            pages.add(p);
+        }
+        empty.writePages(pages);
+        assertEquals(6, empty.numPages());
+        for (int pageNo : new int[] { 0, 1, 2, 3, 5 }) {
+            HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pageNo));
+            assertEquals(pageNo, ((IntField) p.iterator().next().getField(0)).getValue());
+        }
+        assertFalse(((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 4))).iterator().hasNext());
+    }
+
+    /**
+     * Unit test for BufferPool.writeBehind(): dirty pages of a transaction
+     * that holds no locks are written out and become clean, without
+     * using up a transaction id.
+     */
+    @Test public void writeBehind() throws Exception {
+        HeapFileDuplicates hfd = new HeapFileDuplicates(empty.getFile(), empty.getTupleDesc(), 3);
+        Database.getCatalog().addTable(hfd, SystemTestUtil.getUUID());
+        TransactionId writer = new TransactionId();
+        // the duplicate pages are dirtied without being locked
+        Database.getBufferPool().insertTuple(writer, hfd.getId(), Utility.getHeapTuple(7, 2));
+
+        long next = new TransactionId().getId() + 1;
+        Database.getBufferPool().writeBehind();
+        assertEquals(next, new TransactionId().getId());
+        for (int pageNo = hfd.numPages() - 3; pageNo < hfd.numPages(); pageNo++) {
+            HeapPageId pid = new HeapPageId(hfd.getId(), pageNo);
+            assertNull(Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY).isDirty());
+            HeapPage onDisk = (HeapPage) hfd.readPage(pid);
+            assertEquals(7, ((IntField) onDisk.iterator().next().getField(0)).getValue());
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferRingTest extends TestUtil.CreateHeapFile {
+
+    private static final int PAGES = 12;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        for (int pageNo = 0; pageNo < PAGES; pageNo++) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pageNo),
+                    HeapPage.createEmptyPageData());
+            page.insertTuple(Utility.getHeapTuple(pageNo, 2));
+            empty.writePage(page);
+        }
+    }
+
+    private HeapPageId pid(int pageNo) {
+        return new HeapPageId(empty.getId(), pageNo);
+    }
+
+    /**
+     * Reads pages 0 and 1 as hot pages, then pages 2 and up through ring.
+     */
+    private BufferPool scan(BufferRing ring) throws Exception {
+        BufferPool bp = new BufferPool(8, 1, ClockEvictionPolicy::new);
+        TransactionId tid = new TransactionId();
+        for (int pageNo = 0; pageNo < 2; pageNo++) {
+            bp.getPage(tid, pid(pageNo), Permissions.READ_ONLY);
+            bp.getPage(tid, pid(pageNo), Permissions.READ_ONLY);
+        }
+        for (int pageNo = 2; pageNo < PAGES; pageNo++)
+            bp.getPage(tid, pid(pageNo), Permissions.READ_ONLY, ring);
+        bp.transactionComplete(tid);
+        return bp;
+    }
+
+    /**
+     * Only tables bigger than the pool get a ring.
+     */
+    @Test public void forScan() {
+        BufferPool bp = new BufferPool(8, 1);
+        assertNull(BufferRing.forScan(bp, 8));
+        assertEquals(2, BufferRing.forScan(bp, 9).capacity());
+    }
+
+    /**
+     * A scan through a ring recycles its own frames and leaves hot pages
+     * resident; the same scan without a ring pushes them out.
+     */
+    @Test public void ringProtectsHotPages() throws Exception {
+        BufferPool bp = scan(new BufferRing(2));
+        assertTrue(bp.isResident(pid(0)));
+        assertTrue(bp.isResident(pid(1)));
+        assertTrue(bp.isResident(pid(PAGES - 1)));
+        int resident = 0;
+        for (int pageNo = 2; pageNo < PAGES; pageNo++)
+            resident += bp.isResident(pid(pageNo)) ? 1 : 0;
+        assertTrue(resident <= 6);
+
+        bp = scan(null);
+        assertFalse(bp.isResident(pid(0)) && bp.isResident(pid(1)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +214,35 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A deadlock among three transactions, which no pairwise check sees:
+   * t1 waits for t2, t2 for t3 and t3 for t1.  The youngest, t3, must be
+   * the one aborted, after which t2 gets its lock.
+   */
+  @Test public void testThreeWayDeadlock() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    startGrabber(tid3, p2, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2 = startGrabber(tid2, p2, Permissions.READ_WRITE);
+    LockGrabber lg3 = startGrabber(tid3, p0, Permissions.READ_WRITE);
+    lg3.join(10 * POLL_INTERVAL);
+
+    assertNotNull(lg3.getError());
+    lg2.join(10 * POLL_INTERVAL);
+    assertTrue(lg2.acquired());
+    assertNull(lg1.getError());
+    assertFalse(lg1.acquired());
+
+    bp.transactionComplete(tid2);
+    lg1.join(10 * POLL_INTERVAL);
+    assertTrue(lg1.acquired());
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,79 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static EvictionPolicy filled(EvictionPolicy policy, int frames) {
+        for (int i = 0; i < frames; i++)
+            policy.frameFilled(i);
+        return policy;
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy.chooseVictim(): a recently referenced
+     * frame gets a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy clock = filled(new ClockEvictionPolicy(4), 4);
+        // the first sweep clears every bit and lands back on frame 0
+        assertEquals(0, clock.chooseVictim(f -> true));
+        clock.frameEmptied(0);
+        clock.frameAccessed(1);
+        assertEquals(2, clock.chooseVictim(f -> true));
+    }
+
+    /**
+     * Unit test for LruEvictionPolicy.chooseVictim()
+     */
+    @Test public void lruOrder() {
+        EvictionPolicy lru = filled(new LruEvictionPolicy(4), 4);
+        lru.frameAccessed(0);
+        assertEquals(1, lru.chooseVictim(f -> true));
+        lru.frameEmptied(1);
+        assertEquals(2, lru.chooseVictim(f -> true));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy.chooseVictim(): pages touched
+     * twice survive a stream of pages touched once.
+     */
+    @Test public void twoQueueProtectsHotPages() {
+        EvictionPolicy twoQ = filled(new TwoQueueEvictionPolicy(8), 8);
+        twoQ.frameAccessed(0);
+        twoQ.frameAccessed(1);
+        for (int i = 0; i < 4; i++) {
+            int victim = twoQ.chooseVictim(f -> true);
+            assertEquals(i + 2, victim);
+            twoQ.frameEmptied(victim);
+        }
+    }
+
+    /**
+     * Every policy must skip frames the buffer pool says are not evictable,
+     * and report -1 when there are none.
+     */
+    @Test public void honorsEvictable() {
+        EvictionPolicy[] policies = new EvictionPolicy[] {
+            filled(new ClockEvictionPolicy(3), 3),
+            filled(new LruEvictionPolicy(3), 3),
+            filled(new TwoQueueEvictionPolicy(3), 3)
+        };
+        for (EvictionPolicy p : policies) {
+            assertEquals(2, p.chooseVictim(f -> f == 2));
+            assertEquals(-1, p.chooseVictim(f -> false));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
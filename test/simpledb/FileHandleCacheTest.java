@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FileHandleCacheTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws IOException {
+        File f = File.createTempFile("handles", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Unit test for FileHandleCache.write() and read(): positional I/O
+     * through one cached channel.
+     */
+    @Test public void readWrite() throws Exception {
+        File f = tempFile();
+        FileHandleCache.write(f, ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10);
+        FileHandleCache.write(f, new ByteBuffer[] {
+            ByteBuffer.wrap(new byte[] { 4 }), ByteBuffer.wrap(new byte[] { 5 }) }, 13);
+        assertEquals(15, FileHandleCache.append(f, ByteBuffer.wrap(new byte[] { 6 })));
+
+        byte[] got = new byte[8];
+        assertEquals(6, FileHandleCache.read(f, ByteBuffer.wrap(got), 10));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 0, 0 }, got);
+        assertSame(FileHandleCache.channel(f), FileHandleCache.channel(f));
+    }
+
+    /**
+     * Channels beyond the limit are closed least recently used first, and
+     * a closed file is transparently reopened.
+     */
+    @Test public void lruLimit() throws Exception {
+        File first = tempFile();
+        FileHandleCache.write(first, ByteBuffer.wrap(new byte[] { 42 }), 0);
+        FileChannel channel = FileHandleCache.channel(first);
+        for (int i = 0; i < 64; i++)
+            FileHandleCache.channel(tempFile());
+        assertFalse(channel.isOpen());
+
+        byte[] got = new byte[1];
+        FileHandleCache.read(first, ByteBuffer.wrap(got), 0);
+        assertEquals(42, got[0]);
+    }
+
+    /**
+     * Many threads reading and writing more files than may be open at
+     * once all see their own bytes.
+     */
+    @Test public void concurrentUse() throws Exception {
+        File[] files = new File[80];
+        for (int i = 0; i < files.length; i++)
+            files[i] = tempFile();
+        Thread[] threads = new Thread[8];
+        boolean[] failed = new boolean[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int me = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 500; j++) {
+                        File f = files[(j * 7 + me) % files.length];
+                        FileHandleCache.write(f, ByteBuffer.wrap(new byte[] { (byte) j }), me);
+                        byte[] got = new byte[1];
+                        FileHandleCache.read(f, ByteBuffer.wrap(got), me);
+                        failed[me] |= got[0] != (byte) j;
+                    }
+                } catch (IOException e) {
+                    failed[me] = true;
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join(10000);
+            assertFalse(threads[t].isAlive());
+            assertFalse(failed[t]);
+        }
+    }
+
+    /**
+     * Unit test for FileHandleCache.forceAll(): written files are forced
+     * once, also after their channel was closed, and deleted ones skipped.
+     */
+    @Test public void forceAll() throws Exception {
+        File kept = tempFile();
+        File deleted = tempFile();
+        FileHandleCache.write(kept, ByteBuffer.wrap(new byte[] { 1 }), 0);
+        FileHandleCache.write(deleted, ByteBuffer.wrap(new byte[] { 2 }), 0);
+        FileHandleCache.close(kept);
+        FileHandleCache.close(deleted);
+        deleted.delete();
+        assertTrue(FileHandleCache.isUnforced(kept));
+
+        FileHandleCache.forceAll();
+        assertFalse(FileHandleCache.isUnforced(kept));
+        assertFalse(FileHandleCache.isUnforced(deleted));
+    }
+
+    /**
+     * The cache must not create files that do not exist.
+     */
+    @Test(expected = FileNotFoundException.class)
+    public void missingFile() throws Exception {
+        File f = tempFile();
+        f.delete();
+        FileHandleCache.read(f, ByteBuffer.allocate(1), 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleCacheTest.class);
+    }
+}
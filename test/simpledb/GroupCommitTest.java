@@ -0,0 +1,97 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    @Before public void setUp() throws Exception {
+        // hold batches open long enough for every thread to join them
+        System.setProperty(GroupCommit.DELAY_PROPERTY, "2000");
+        Database.reset();
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(GroupCommit.DELAY_PROPERTY);
+        Database.reset();
+    }
+
+    /**
+     * Transactions committing at the same time share forces of the log,
+     * and each commit still returns.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final int perThread = 25;
+        AtomicInteger committed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < perThread; j++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                        committed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(20000);
+            assertFalse(t.isAlive());
+        }
+        int commits = threads.length * perThread;
+        assertEquals(commits, committed.get());
+        int flushes = Database.getLogFile().groupCommitFlushes();
+        assertTrue("flushes: " + flushes, flushes > 0 && flushes < commits);
+    }
+
+    /**
+     * A failed force fails the commits it was to cover, but not those that
+     * arrive after it, which get a force of their own.
+     */
+    @Test public void failureStaysWithItsBatch() throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        AtomicBoolean failNext = new AtomicBoolean(true);
+        LogFile log = new LogFile(f) {
+            @Override long writeAndForce() throws IOException {
+                if (failNext.getAndSet(false))
+                    throw new IOException("disk full");
+                return 200;
+            }
+        };
+        GroupCommit groupCommit = new GroupCommit(log, 0);
+        try {
+            groupCommit.await(100);
+            fail("expected IOException");
+        } catch (IOException e) {
+        }
+        groupCommit.await(100);
+        assertTrue(groupCommit.isDurable(200));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -77,6 +77,43 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() through a memory mapping: a page
+     * appended after the file was first mapped is still readable.
+     */
+    @Test
+    public void readMappedPage() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        assertTrue(mapped.isMemoryMapped());
+        HeapPage page = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 0));
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+
+        HeapPageId appended = new HeapPageId(mapped.getId(), 1);
+        mapped.writePage(new HeapPage(appended, HeapPage.createEmptyPageData()));
+        assertEquals(2, mapped.numPages());
+        assertEquals(504, ((HeapPage) mapped.readPage(appended)).getNumEmptySlots());
+    }
+
+    /**
+     * A dirtied mapped page keeps its before image after it is written,
+     * which changes the mapping it was read from.
+     */
+    @Test
+    public void mappedBeforeImage() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+        mapped.writePage(page);
+        assertEquals(485, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+
+        HeapPage before = page.getBeforeImage();
+        assertEquals(484, before.getNumEmptySlots());
+        assertTrue(before.isSlotUsed(0));
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -43,6 +43,65 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /** Fill the first two pages of empty, and commit. */
+    private void fillTwoPages() throws Exception {
+        for (int i = 0; i < 2 * 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An insert goes straight to a page with space, without locking the
+     * full pages before it, also once the file is opened again.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        fillTwoPages();
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        for (HeapFile f : new HeapFile[] {empty, reopened}) {
+            TransactionId inserter = new TransactionId();
+            f.insertTuple(inserter, Utility.getHeapTuple(0, 2));
+            assertFalse(Database.getBufferPool().holdsLock(inserter, new HeapPageId(empty.getId(), 0)));
+            assertFalse(Database.getBufferPool().holdsLock(inserter, new HeapPageId(empty.getId(), 1)));
+            Database.getBufferPool().transactionComplete(inserter);
+        }
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * A delete from a full page makes it the target of the next insert.
+     */
+    @Test public void deleteFreesPage() throws Exception {
+        fillTwoPages();
+        TransactionId deleter = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(deleter,
+            new HeapPageId(empty.getId(), 1), Permissions.READ_WRITE);
+        empty.deleteTuple(deleter, page.iterator().next());
+        empty.insertTuple(deleter, Utility.getHeapTuple(0, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(0, page.getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(deleter);
+    }
+
+    /**
+     * A page filled by an insert that aborts has room again afterwards.
+     */
+    @Test public void abortedInsertFreesPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 503; ++i)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+
+        TransactionId aborted = new TransactionId();
+        bp.insertTuple(aborted, empty.getId(), Utility.getHeapTuple(0, 2));
+        bp.transactionComplete(aborted, false);
+
+        TransactionId inserter = new TransactionId();
+        bp.insertTuple(inserter, empty.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(1, empty.numPages());
+        bp.transactionComplete(inserter);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,319 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final int TABLE = 42;
+
+    private static PageId page(int pageNo) {
+        return new HeapPageId(TABLE, pageNo);
+    }
+
+    /**
+     * Unit test for LockMode.compatible(), covers() and combine()
+     */
+    @Test public void lockModes() {
+        assertTrue(LockMode.IS.compatible(LockMode.SIX));
+        assertTrue(LockMode.IX.compatible(LockMode.IX));
+        assertFalse(LockMode.IX.compatible(LockMode.S));
+        assertFalse(LockMode.SIX.compatible(LockMode.SIX));
+        assertFalse(LockMode.X.compatible(LockMode.IS));
+
+        assertTrue(LockMode.SIX.covers(LockMode.IX));
+        assertFalse(LockMode.S.covers(LockMode.IX));
+        assertEquals(LockMode.SIX, LockMode.S.combine(LockMode.IX));
+        assertEquals(LockMode.X, LockMode.IS.combine(LockMode.X));
+    }
+
+    /**
+     * Page locks take intention locks on their table, so a table lock
+     * conflicts with page locks of other transactions.
+     */
+    @Test public void intentionLocks() throws Exception {
+        LockManager lm = new LockManager(0);
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        lm.getLock(writer, page(0), Permissions.READ_WRITE);
+        assertTrue(lm.tryAcquireSharedLock(reader, page(1)));
+        assertFalse(lm.tryAcquireSharedLock(reader, page(0)));
+    }
+
+    /**
+     * Once a transaction crosses the threshold its page locks on the table
+     * become one S lock, which lets other readers in but covers every page.
+     */
+    @Test public void escalateToShared() throws Exception {
+        LockManager lm = new LockManager(2);
+        TransactionId scan = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            lm.getLock(scan, page(i), Permissions.READ_ONLY);
+
+        assertTrue(lm.getAffectedPagesList(scan).isEmpty());
+        assertTrue(lm.doesItHaveLock(scan, page(100)));
+        assertTrue(lm.tryAcquireSharedLock(new TransactionId(), page(1)));
+
+        lm.releaseAllLocksOfTransaction(scan);
+        assertFalse(lm.holdsLocks(scan));
+        assertFalse(lm.doesItHaveLock(scan, page(0)));
+    }
+
+    /**
+     * A writing transaction escalates to an X lock on the table, which
+     * keeps every other transaction out.
+     */
+    @Test public void escalateToExclusive() throws Exception {
+        LockManager lm = new LockManager(2);
+        TransactionId update = new TransactionId();
+        lm.getLock(update, page(0), Permissions.READ_ONLY);
+        lm.getLock(update, page(1), Permissions.READ_WRITE);
+        lm.getLock(update, page(2), Permissions.READ_WRITE);
+
+        assertTrue(lm.getAffectedPagesList(update).isEmpty());
+        assertFalse(lm.tryAcquireSharedLock(new TransactionId(), page(5)));
+        lm.releaseAllLocksOfTransaction(update);
+        assertTrue(lm.tryAcquireSharedLock(new TransactionId(), page(5)));
+    }
+
+    /** Start a thread that locks pid exclusively for tid, ignoring aborts. */
+    private static Thread lockInBackground(LockManager lm, TransactionId tid, PageId pid) {
+        Thread t = new Thread(() -> {
+            try {
+                lm.getLock(tid, pid, Permissions.READ_WRITE);
+            } catch (TransactionAbortedException e) {
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /**
+     * Shared locks granted by the fast path still block a writer until
+     * they are released, and the writer in turn closes the fast path.
+     */
+    @Test public void fastPathReaders() throws Exception {
+        LockManager lm = new LockManager(0);
+        TransactionId r1 = new TransactionId();
+        TransactionId r2 = new TransactionId();
+        lm.getLock(r1, page(0), Permissions.READ_ONLY);
+        lm.getLock(r2, page(0), Permissions.READ_ONLY);
+
+        TransactionId writer = new TransactionId();
+        Thread waiter = lockInBackground(lm, writer, page(0));
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+        assertFalse(lm.tryAcquireSharedLock(new TransactionId(), page(0)));
+
+        lm.releaseLock(r1, page(0));
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+        lm.releaseAllLocksOfTransaction(r2);
+        waiter.join(1000);
+        assertTrue(lm.doesItHaveLock(writer, page(0)));
+
+        lm.releaseAllLocksOfTransaction(writer);
+        assertFalse(lm.holdsLocks(writer));
+        assertTrue(lm.tryAcquireSharedLock(new TransactionId(), page(0)));
+    }
+
+    /**
+     * Many threads taking and dropping shared and exclusive locks on the
+     * same pages all get through, and leave nothing locked.
+     */
+    @Test public void concurrentLockers() throws Exception {
+        LockManager lm = new LockManager(0);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean writer = i % 4 == 0;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 500; j++) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        lm.getLock(tid, page(j % 3), writer ? Permissions.READ_WRITE
+                                                            : Permissions.READ_ONLY);
+                    } catch (TransactionAbortedException e) {
+                    }
+                    lm.releaseAllLocksOfTransaction(tid);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+            assertFalse(t.isAlive());
+        }
+        assertEquals(0, lm.lockTableSize());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            lm.getLock(tid, page(i), Permissions.READ_WRITE);
+        assertEquals(3, lm.getAffectedPagesList(tid).size());
+    }
+
+    /**
+     * Lock states are dropped once nothing holds or wants them, and a
+     * request racing with the drop still excludes other writers.
+     */
+    @Test public void idleStatesDropped() throws Exception {
+        LockManager lm = new LockManager(0);
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        lm.getLock(reader, page(0), Permissions.READ_ONLY);
+        lm.getLock(writer, page(1), Permissions.READ_WRITE);
+        assertEquals(3, lm.lockTableSize());
+        lm.releaseAllLocksOfTransaction(reader);
+        assertEquals(2, lm.lockTableSize());
+        lm.releaseAllLocksOfTransaction(writer);
+        assertEquals(0, lm.lockTableSize());
+
+        AtomicInteger inside = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 2000; j++) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        lm.getLock(tid, page(0), Permissions.READ_WRITE);
+                        if (inside.incrementAndGet() > 1)
+                            overlapped.set(true);
+                        inside.decrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                    }
+                    lm.releaseAllLocksOfTransaction(tid);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+            assertFalse(t.isAlive());
+        }
+        assertFalse(overlapped.get());
+        assertEquals(0, lm.lockTableSize());
+    }
+
+    /**
+     * Unit test for DeadlockPolicy.forName()
+     */
+    @Test public void policyNames() {
+        assertEquals(DeadlockPolicy.WOUND_WAIT, DeadlockPolicy.forName("wound-wait"));
+        assertEquals(DeadlockPolicy.NO_WAIT, DeadlockPolicy.forName("No-Wait"));
+        assertEquals(DeadlockPolicy.DETECT, DeadlockPolicy.forName(null));
+    }
+
+    /**
+     * Under no-wait any conflict aborts the requester.
+     */
+    @Test(expected = TransactionAbortedException.class)
+    public void noWait() throws Exception {
+        LockManager lm = new LockManager(0, DeadlockPolicy.NO_WAIT);
+        lm.getLock(new TransactionId(), page(0), Permissions.READ_ONLY);
+        lm.getLock(new TransactionId(), page(0), Permissions.READ_WRITE);
+    }
+
+    /**
+     * Under wait-die a younger requester aborts, and an older one waits.
+     */
+    @Test public void waitDie() throws Exception {
+        LockManager lm = new LockManager(0, DeadlockPolicy.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.getLock(older, page(0), Permissions.READ_WRITE);
+        try {
+            lm.getLock(younger, page(0), Permissions.READ_WRITE);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+        }
+        lm.releaseAllLocksOfTransaction(younger);
+
+        lm.getLock(younger, page(1), Permissions.READ_WRITE);
+        Thread waiter = lockInBackground(lm, older, page(1));
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+        lm.releaseAllLocksOfTransaction(younger);
+        waiter.join(1000);
+        assertTrue(lm.doesItHaveLock(older, page(1)));
+    }
+
+    /**
+     * A page the buffer pool's system writer holds is waited for under
+     * wait-die, however young the requester.
+     */
+    @Test public void systemWriterHasNoAge() throws Exception {
+        LockManager lm = new LockManager(0, DeadlockPolicy.WAIT_DIE);
+        TransactionId writer = TransactionId.system();
+        assertTrue(lm.tryAcquireSharedLock(writer, page(0)));
+        Thread waiter = lockInBackground(lm, new TransactionId(), page(0));
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+        lm.releaseAllLocksOfTransaction(writer);
+        waiter.join(1000);
+        assertFalse(waiter.isAlive());
+    }
+
+    /**
+     * Each write-out pass of the buffer pool locks under an id of its
+     * own, so one pass releasing its locks leaves another's held.
+     */
+    @Test public void systemWritersIndependent() throws Exception {
+        LockManager lm = new LockManager(0, DeadlockPolicy.WAIT_DIE);
+        TransactionId steal = TransactionId.system();
+        TransactionId writeBehind = TransactionId.system();
+        assertFalse(steal.equals(writeBehind));
+        assertTrue(lm.tryAcquireSharedLock(steal, page(0)));
+        assertTrue(lm.tryAcquireSharedLock(writeBehind, page(0)));
+        lm.releaseAllLocksOfTransaction(steal);
+        assertTrue(lm.doesItHaveLock(writeBehind, page(0)));
+        lm.releaseAllLocksOfTransaction(writeBehind);
+    }
+
+    /**
+     * Under wound-wait an older requester aborts the younger holder, which
+     * finds out at its next lock request.
+     */
+    @Test public void woundWait() throws Exception {
+        LockManager lm = new LockManager(0, DeadlockPolicy.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.getLock(younger, page(0), Permissions.READ_WRITE);
+        Thread waiter = lockInBackground(lm, older, page(0));
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+        try {
+            lm.getLock(younger, page(1), Permissions.READ_ONLY);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+        }
+        lm.releaseAllLocksOfTransaction(younger);
+        waiter.join(1000);
+        assertTrue(lm.doesItHaveLock(older, page(0)));
+    }
+
+    /**
+     * Under the timeout policy a request gives up after a while.
+     */
+    @Test(expected = TransactionAbortedException.class)
+    public void timeout() throws Exception {
+        LockManager lm = new LockManager(0, DeadlockPolicy.TIMEOUT);
+        lm.getLock(new TransactionId(), page(0), Permissions.READ_WRITE);
+        lm.getLock(new TransactionId(), page(0), Permissions.READ_ONLY);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
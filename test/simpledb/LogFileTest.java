@@ -0,0 +1,316 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("logfile", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getPath(), 2);
+        log = Database.getLogFile();
+    }
+
+    @After public void tearDown() {
+        Database.reset();
+    }
+
+    private HeapPage page() throws Exception {
+        return (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+    }
+
+    /**
+     * Records stay in the log buffer until the log is flushed up to them.
+     */
+    @Test public void bufferedUntilFlushed() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force();
+        long length = log.segments.end();
+
+        HeapPage page = page();
+        long lsn = log.logWrite(tid, page, page);
+        assertEquals(length, log.segments.end());
+        log.flushToLSN(lsn);
+        assertTrue(log.segments.end() > length);
+    }
+
+    /**
+     * A one-tuple insert logs the bytes it changed, not two page images.
+     */
+    @Test public void deltaRecords() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force();
+        long length = log.segments.end();
+
+        HeapPage before = page();
+        HeapPage after = page();
+        after.insertTuple(Utility.getHeapTuple(new int[] {1, 2}));
+        log.flushToLSN(log.logWrite(tid, before, after));
+        assertTrue(log.segments.end() - length < 256);
+    }
+
+    /**
+     * LSNs keep growing, and keep naming the same records, when a
+     * checkpoint truncates the front of the log.
+     */
+    @Test public void lsnsSurviveTruncation() throws Exception {
+        TransactionId done = new TransactionId();
+        log.logXactionBegin(done);
+        HeapPage page = page();
+        long first = log.logWrite(done, page, page);
+        log.logCommit(done);
+
+        TransactionId running = new TransactionId();
+        log.logXactionBegin(running);
+        long second = log.logWrite(running, page, page);
+        log.logCheckpoint();
+        long third = log.logWrite(running, page, page);
+        assertTrue(first < second && second < third);
+        assertTrue(first < log.segments.start());
+        log.flushToLSN(third);
+    }
+
+    /**
+     * Truncation drops the whole segments before the oldest record still
+     * needed, archiving them if asked to.
+     */
+    @Test public void truncationArchivesSegments() throws Exception {
+        File archive = Files.createTempDirectory("logarchive").toFile();
+        archive.deleteOnExit();
+        System.setProperty(LogSegments.SEGMENT_PROPERTY, "1024");
+        System.setProperty(LogSegments.ARCHIVE_PROPERTY, archive.getPath());
+        try {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            HeapPage page = page();
+            for (int i = 0; i < 100; i++)
+                log.logWrite(tid, page, page);
+            log.logCommit(tid);
+            int segments = log.segments.segmentCount();
+            assertTrue(segments > 1);
+
+            log.logCheckpoint();
+            int kept = log.segments.segmentCount();
+            assertTrue(kept < segments);
+            assertEquals(segments - kept, archive.list().length);
+            for (File f : archive.listFiles())
+                f.deleteOnExit();
+        } finally {
+            System.clearProperty(LogSegments.SEGMENT_PROPERTY);
+            System.clearProperty(LogSegments.ARCHIVE_PROPERTY);
+        }
+    }
+
+    /**
+     * Reads go through a buffer across segment boundaries, and see bytes
+     * written again after the log was cut back.
+     */
+    @Test public void readsAcrossSegments() throws Exception {
+        File f = File.createTempFile("segments", ".dat");
+        f.deleteOnExit();
+        System.setProperty(LogSegments.SEGMENT_PROPERTY, "1024");
+        LogSegments segments = new LogSegments(f);
+        try {
+            segments.clear();
+            byte[] data = new byte[3000];
+            for (int i = 0; i < data.length; i++)
+                data[i] = (byte) i;
+            segments.append(data, 0, data.length);
+            byte[] read = new byte[2500];
+            segments.seek(100);
+            segments.readFully(read);
+            assertArrayEquals(Arrays.copyOfRange(data, 100, 2600), read);
+
+            segments.seek(1400);
+            assertEquals(data[1400], segments.readByte());
+            segments.setLength(1500);
+            byte[] again = new byte[] {42, 43, 44};
+            segments.append(again, 0, again.length);
+            segments.seek(1499);
+            assertEquals(data[1499], segments.readByte());
+            assertEquals(42, segments.readByte());
+            assertEquals(43, segments.readByte());
+            assertEquals(44, segments.readByte());
+            assertEquals(-1, segments.read());
+        } finally {
+            System.clearProperty(LogSegments.SEGMENT_PROPERTY);
+            segments.clear();
+            segments.close();
+        }
+    }
+
+    /**
+     * A log file from before segments is converted, keeping its LSNs, and
+     * its committed updates are redone.
+     */
+    @Test public void convertsSingleFileLog() throws Exception {
+        File f = File.createTempFile("oldlog", ".dat");
+        f.deleteOnExit();
+        HeapPage before = page();
+        HeapPage after = page();
+        after.insertTuple(Utility.getHeapTuple(new int[] {1, 2}));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(LogFile.NO_CHECKPOINT_ID);
+        out.writeInt(LogFile.BEGIN_RECORD);
+        out.writeLong(1);
+        out.writeLong(LogFile.LONG_SIZE);
+        long update = out.size();
+        out.writeInt(LogFile.UPDATE_RECORD);
+        out.writeLong(1);
+        log.writePageData(out, before);
+        log.writePageData(out, after);
+        out.writeLong(update);
+        long commit = out.size();
+        out.writeInt(LogFile.COMMIT_RECORD);
+        out.writeLong(1);
+        out.writeLong(commit);
+        Files.write(f.toPath(), bytes.toByteArray());
+
+        LogFile old = new LogFile(f);
+        try {
+            assertEquals(LogFile.LONG_SIZE, old.segments.start());
+            assertEquals(bytes.size(), old.segments.end());
+            old.recover();
+            assertEquals(after.getNumEmptySlots(), page().getNumEmptySlots());
+        } finally {
+            old.segments.clear();
+            old.segments.close();
+        }
+    }
+
+    /** A log file that is neither a manifest nor an old log is refused. */
+    @Test(expected = IOException.class) public void refusesUnknownLog() throws Exception {
+        File f = File.createTempFile("badlog", ".dat");
+        f.deleteOnExit();
+        Files.write(f.toPath(), new byte[] {1, 2, 3});
+        new LogFile(f);
+    }
+
+    /** @return page read back from its image as written by the log */
+    private Page roundTrip(Page page) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writePageData(new DataOutputStream(bytes), page);
+        // a type code instead of a class name, for the page and its id
+        assertTrue(bytes.size() < page.getPageData().length + 24);
+        return log.readPageData(new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /**
+     * Every kind of page is logged under its one-byte type code and read
+     * back as the same page.
+     */
+    @Test public void pageTypeCodes() throws Exception {
+        File f = File.createTempFile("logbtree", ".dat");
+        f.deleteOnExit();
+        int bt = BTreeUtility.openBTreeFile(2, f, 0).getId();
+        Page[] pages = {
+            page(),
+            new BTreeLeafPage(new BTreePageId(bt, 1, BTreePageId.LEAF),
+                              BTreePage.createEmptyPageData(), 0),
+            new BTreeInternalPage(new BTreePageId(bt, 2, BTreePageId.INTERNAL),
+                                  BTreePage.createEmptyPageData(), 0),
+            new BTreeHeaderPage(new BTreePageId(bt, 3, BTreePageId.HEADER),
+                                BTreeHeaderPage.createEmptyPageData()),
+            new BTreeRootPtrPage(BTreeRootPtrPage.getId(bt),
+                                 BTreeRootPtrPage.createEmptyPageData()),
+        };
+        for (Page page : pages) {
+            Page read = roundTrip(page);
+            assertEquals(page.getClass(), read.getClass());
+            assertEquals(page.getId(), read.getId());
+            assertArrayEquals(page.getPageData(), read.getPageData());
+        }
+    }
+
+    /**
+     * Page images written with the names of their classes, as before type
+     * codes, are still read.
+     */
+    @Test public void readsClassNamedImages() throws Exception {
+        HeapPage page = page();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(HeapPage.class.getName());
+        out.writeUTF(HeapPageId.class.getName());
+        int[] id = page.getId().serialize();
+        out.writeInt(id.length);
+        for (int i : id)
+            out.writeInt(i);
+        out.writeInt(page.getPageData().length);
+        out.write(page.getPageData());
+
+        Page read = log.readPageData(new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(HeapPage.class, read.getClass());
+        assertEquals(page.getId(), read.getId());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+    }
+
+    /**
+     * A checkpoint neither locks the buffer pool nor waits for it.
+     */
+    @Test public void checkpointDoesNotLockBufferPool() throws Exception {
+        Thread checkpoint = new Thread(() -> {
+            try {
+                log.logCheckpoint();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        synchronized (Database.getBufferPool()) {
+            checkpoint.start();
+            checkpoint.join(10000);
+            assertFalse(checkpoint.isAlive());
+        }
+    }
+
+    /**
+     * A checkpoint forces the data files written before it, since the log
+     * records that could redo their pages may be truncated.
+     */
+    @Test public void checkpointForcesDataFiles() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] {1, 2}));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        assertTrue(FileHandleCache.isUnforced(hf.getFile()));
+
+        log.logCheckpoint();
+        assertFalse(FileHandleCache.isUnforced(hf.getFile()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadAheadTest extends TestUtil.CreateHeapFile {
+
+    private static final int PAGES = 10;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        for (int pageNo = 0; pageNo < PAGES; pageNo++) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pageNo),
+                    HeapPage.createEmptyPageData());
+            page.insertTuple(Utility.getHeapTuple(pageNo, 2));
+            empty.writePage(page);
+        }
+        assertEquals(PAGES, empty.numPages());
+    }
+
+    private static boolean becomesResident(BufferPool bp, PageId pid) throws InterruptedException {
+        for (int i = 0; i < 500 && !bp.isResident(pid); i++)
+            Thread.sleep(10);
+        return bp.isResident(pid);
+    }
+
+    /**
+     * A miss at the start of a sequential scan widens the window and loads
+     * the pages after it in the background.
+     */
+    @Test public void sequentialMissPrefetches() throws Exception {
+        BufferPool bp = new BufferPool(40, 1);
+        ReadAhead readAhead = new ReadAhead(bp, empty.getId());
+        readAhead.pageRequested(0, PAGES);
+        assertEquals(4, readAhead.window());
+        assertTrue(becomesResident(bp, new HeapPageId(empty.getId(), 4)));
+    }
+
+    /**
+     * Non-sequential access shrinks the window back to its minimum.
+     */
+    @Test public void randomAccessResets() throws Exception {
+        BufferPool bp = new BufferPool(40, 1);
+        ReadAhead readAhead = new ReadAhead(bp, empty.getId());
+        readAhead.pageRequested(0, PAGES);
+        readAhead.pageRequested(7, PAGES);
+        assertEquals(2, readAhead.window());
+    }
+
+    /**
+     * A prefetched page is returned by getPage without reading it again.
+     */
+    @Test public void getPageUsesPrefetchedPage() throws Exception {
+        BufferPool bp = new BufferPool(40, 1);
+        HeapPageId pid = new HeapPageId(empty.getId(), 3);
+        bp.prefetchPage(pid, null);
+        assertTrue(bp.isResident(pid));
+        TransactionId tid = new TransactionId();
+        Page page = bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertSame(page, bp.getPage(tid, pid, Permissions.READ_ONLY));
+        assertEquals(3, ((IntField) ((HeapPage) page).iterator().next().getField(0)).getValue());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+
+    private PageId p0;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        p0 = new HeapPageId(empty.getId(), 0);
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** Delete one tuple from p0 on behalf of tid, without committing. */
+    private void deleteOne(TransactionId tid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+    }
+
+    private int emptySlots(TransactionId tid) throws Exception {
+        return ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).getNumEmptySlots();
+    }
+
+    /**
+     * A snapshot reader neither blocks on nor sees an uncommitted write,
+     * and keeps seeing the old version after the writer commits.
+     */
+    @Test public void readsSnapshot() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteOne(writer);
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        int before = emptySlots(reader);
+        assertNotSame(bp.getPage(reader, p0, Permissions.READ_ONLY),
+                      bp.getPage(writer, p0, Permissions.READ_ONLY));
+
+        bp.transactionComplete(writer);
+        assertEquals(before, emptySlots(reader));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(before + 1, emptySlots(later));
+
+        bp.transactionComplete(reader);
+        bp.transactionComplete(later);
+    }
+
+    /** A snapshot transaction may not ask for write access. */
+    @Test public void readOnly() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        try {
+            bp.getPage(reader, p0, Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+        }
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * A read-only Transaction writes nothing to the log, so it neither
+     * waits for a log force nor holds back log truncation.
+     */
+    @Test public void notLogged() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.force();
+        long length = log.segments.end();
+
+        Transaction t = new Transaction(true);
+        t.start();
+        assertFalse(log.isRunning(t.getId()));
+        emptySlots(t.getId());
+        t.commit();
+        log.force();
+        assertEquals(length, log.segments.end());
+        assertFalse(bp.isSnapshot(t.getId()));
+    }
+
+    /**
+     * Unit test for VersionStore: versions are only kept while a snapshot
+     * could read them.
+     */
+    @Test public void garbageCollection() throws Exception {
+        VersionStore versions = new VersionStore();
+        TransactionId writer = new TransactionId();
+        HeapPage page = new HeapPage((HeapPageId) p0, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        versions.commit(writer, Arrays.<Page>asList(page));
+        assertEquals(0, versions.size());
+
+        long s1 = versions.beginSnapshot();
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        versions.commit(writer, Arrays.<Page>asList(page));
+        long s2 = versions.beginSnapshot();
+        page.insertTuple(Utility.getHeapTuple(3, 2));
+        versions.commit(writer, Arrays.<Page>asList(page));
+        assertEquals(2, versions.size());
+
+        int total = page.getNumEmptySlots() + 3;
+        assertEquals(total - 1, ((HeapPage) versions.read(s1, page)).getNumEmptySlots());
+        assertEquals(total - 2, ((HeapPage) versions.read(s2, page)).getNumEmptySlots());
+
+        versions.endSnapshot(s1);
+        assertEquals(1, versions.size());
+        versions.endSnapshot(s2);
+        assertEquals(0, versions.size());
+        assertEquals(total - 3, ((HeapPage) versions.read(versions.beginSnapshot(), page)).getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for VersionStore: a page written out by a running
+     * transaction and read back still reads as its committed version,
+     * until the transaction commits.
+     */
+    @Test public void stolenPages() throws Exception {
+        VersionStore versions = new VersionStore();
+        TransactionId writer = new TransactionId();
+        HeapPage page = new HeapPage((HeapPageId) p0, HeapPage.createEmptyPageData());
+        int empty = page.getNumEmptySlots();
+        long snapshot = versions.beginSnapshot();
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        versions.steal(writer, page);
+        HeapPage readBack = new HeapPage((HeapPageId) p0, page.getPageData());
+        assertEquals(empty, ((HeapPage) versions.committed(readBack)).getNumEmptySlots());
+        assertEquals(empty, ((HeapPage) versions.read(snapshot, readBack)).getNumEmptySlots());
+
+        versions.commit(writer, Collections.<Page>emptyList());
+        assertEquals(empty - 1, ((HeapPage) versions.committed(readBack)).getNumEmptySlots());
+        assertEquals(empty, ((HeapPage) versions.read(snapshot, readBack)).getNumEmptySlots());
+        assertEquals(1, versions.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
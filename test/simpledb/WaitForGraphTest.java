@@ -0,0 +1,69 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class WaitForGraphTest extends SimpleDbTestBase {
+
+    private static void waits(WaitForGraph g, TransactionId tid,
+                              TransactionId holder, Object monitor) {
+        g.waitFor(tid, Collections.singleton(holder), monitor);
+    }
+
+    /**
+     * Unit test for WaitForGraph.breakCycle(): a chain of waits is not a
+     * deadlock.
+     */
+    @Test public void noCycle() {
+        WaitForGraph g = new WaitForGraph();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        waits(g, t1, t2, new Object());
+        waits(g, t2, t3, new Object());
+        assertNull(g.breakCycle(t1));
+        assertFalse(g.isVictim(t1) || g.isVictim(t2) || g.isVictim(t3));
+    }
+
+    /**
+     * The youngest transaction on a cycle is the victim, whichever
+     * transaction closed the cycle, and the caller is handed the monitor
+     * it is parked on.
+     */
+    @Test public void youngestVictim() {
+        WaitForGraph g = new WaitForGraph();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        Object parked = new Object();
+        waits(g, t3, t1, parked);
+        waits(g, t2, t3, new Object());
+        waits(g, t1, t2, new Object());
+
+        assertSame(parked, g.breakCycle(t1));
+        assertTrue(g.isVictim(t3));
+        assertFalse(g.isVictim(t1) || g.isVictim(t2));
+
+        // the victim closing its own cycle is told directly
+        g.forget(t3);
+        waits(g, t3, t1, parked);
+        assertNull(g.breakCycle(t3));
+        assertTrue(g.isVictim(t3));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WaitForGraphTest.class);
+    }
+}
@@ -0,0 +1,262 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private File fileA;
+    private File fileB;
+    private HeapFile a;
+    private HeapFile b;
+
+    @Before public void setUp() throws IOException {
+        fileA = File.createTempFile("recoveryA", ".dat");
+        fileB = File.createTempFile("recoveryB", ".dat");
+        fileA.deleteOnExit();
+        fileB.deleteOnExit();
+        a = Utility.createEmptyHeapFile(fileA.getPath(), 2);
+        b = Utility.createEmptyHeapFile(fileB.getPath(), 2);
+    }
+
+    @After public void tearDown() {
+        Database.reset();
+    }
+
+    private static void insert(Transaction t, HeapFile f, int value)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(),
+                Utility.getHeapTuple(new int[] {value, value}));
+    }
+
+    /** @return true if a new transaction finds value in f */
+    private static boolean contains(HeapFile f, int value)
+            throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = f.iterator(t.getId());
+        boolean found = false;
+        it.open();
+        while (it.hasNext())
+            found |= ((IntField) it.next().getField(0)).getValue() == value;
+        it.close();
+        t.commit();
+        return found;
+    }
+
+    /** @return the number of rows a new transaction finds in f */
+    private static int count(HeapFile f)
+            throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = f.iterator(t.getId());
+        int rows = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            rows++;
+        }
+        it.close();
+        t.commit();
+        return rows;
+    }
+
+    /**
+     * Lose everything in memory, reopen the tables and run recovery, as
+     * after a crash.
+     */
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        a = Utility.openHeapFile(2, fileA);
+        b = Utility.openHeapFile(2, fileB);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Pages an uncommitted transaction wrote out are rolled back by
+     * recovery, even across a checkpoint.
+     */
+    @Test public void losersUndone() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, a, 1);
+        Database.getLogFile().logCheckpoint();
+        insert(t, b, 2);
+        Database.getBufferPool().flushAllPages();
+
+        crashAndRecover();
+        assertFalse(contains(a, 1));
+        assertFalse(contains(b, 2));
+    }
+
+    /**
+     * A committed update whose page never reached disk is redone.
+     */
+    @Test public void winnersRedone() throws Exception {
+        byte[] before = Files.readAllBytes(fileA.toPath());
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, a, 1);
+        t.commit();
+        // as if the page write had been lost
+        Files.write(fileA.toPath(), before);
+
+        crashAndRecover();
+        assertTrue(contains(a, 1));
+    }
+
+    /**
+     * Redo spread over several threads installs the committed changes to
+     * every page, each page's in log order.
+     */
+    @Test public void parallelRedo() throws Exception {
+        System.setProperty("simpledb.RedoThreads", "4");
+        try {
+            byte[] beforeA = Files.readAllBytes(fileA.toPath());
+            byte[] beforeB = Files.readAllBytes(fileB.toPath());
+            for (int i = 0; i < 20; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                for (int j = 0; j < 100; j++) {
+                    insert(t, a, i * 100 + j);
+                    insert(t, b, i * 100 + j);
+                }
+                t.commit();
+            }
+            // as if no page had been written
+            Files.write(fileA.toPath(), beforeA);
+            Files.write(fileB.toPath(), beforeB);
+
+            crashAndRecover();
+            assertEquals(2000, count(a));
+            assertEquals(2000, count(b));
+        } finally {
+            System.clearProperty("simpledb.RedoThreads");
+        }
+    }
+
+    /**
+     * A commit only forces the log; the page stays dirty in the buffer
+     * pool, and after a crash recovery redoes it from the log.
+     */
+    @Test public void commitForcesLogOnly() throws Exception {
+        byte[] before = Files.readAllBytes(fileA.toPath());
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, a, 1);
+        t.commit();
+        assertArrayEquals(before, Files.readAllBytes(fileA.toPath()));
+        assertTrue(contains(a, 1));
+
+        crashAndRecover();
+        assertTrue(contains(a, 1));
+    }
+
+    /**
+     * A checkpoint leaves committed pages dirty, and keeps the log records
+     * from before it that recovery needs to redo them.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        byte[] before = Files.readAllBytes(fileA.toPath());
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, a, 1);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+        assertArrayEquals(before, Files.readAllBytes(fileA.toPath()));
+
+        crashAndRecover();
+        assertTrue(contains(a, 1));
+    }
+
+    /**
+     * An abort restores pages that were written out before it.
+     */
+    @Test public void rollbackStolenPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, a, 1);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertFalse(contains(a, 1));
+    }
+
+    /**
+     * A page an uncommitted transaction appends to a table is only
+     * written once its insert is logged, so the insert is undone.
+     */
+    @Test public void losersNewPageUndone() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int perPage = ((HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(a.getId(), 0), Permissions.READ_ONLY)).getNumEmptySlots();
+        for (int i = 0; i < perPage; i++)
+            insert(t, a, i);
+        t.commit();
+        assertEquals(1, a.numPages());
+
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, a, perPage);
+        assertEquals(2, a.numPages());
+
+        crashAndRecover();
+        assertEquals(perPage, count(a));
+    }
+
+    /**
+     * A change written out and then reverted by the same transaction
+     * before it commits stays reverted after a crash: the log takes the
+     * page from what was written out, not from its last committed version.
+     */
+    @Test public void revertStolenChange() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, a, 1);
+        Database.getBufferPool().flushAllPages();
+        DbFileIterator it = a.iterator(t.getId());
+        it.open();
+        Database.getBufferPool().deleteTuple(t.getId(), it.next());
+        it.close();
+        t.commit();
+
+        crashAndRecover();
+        assertEquals(0, count(a));
+    }
+
+    /**
+     * Recovering again after a crash during or after recovery changes
+     * nothing: the compensation records written the first time are
+     * redone, and nothing is undone twice.
+     */
+    @Test public void repeatedRecovery() throws Exception {
+        Transaction winner = new Transaction();
+        winner.start();
+        insert(winner, a, 1);
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, b, 2);
+        winner.commit();
+        Database.getBufferPool().flushAllPages();
+
+        crashAndRecover();
+        crashAndRecover();
+        assertTrue(contains(a, 1));
+        assertFalse(contains(b, 2));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}